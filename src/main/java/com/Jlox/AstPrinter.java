@@ -106,6 +106,11 @@ class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
         return "";
     }
 
+    @Override
+    public String visitForStmt(Stmt.For stmt) {
+        return "";
+    }
+
     @Override
     public String visitFunctionStmt(Stmt.Function stmt) {
         return "";
@@ -0,0 +1,204 @@
+package com.Jlox;
+
+import java.util.Objects;
+
+/*
+ * Self-specializing implementations of the binary operators for the Interpreter. An Expr.Binary
+ * picks one on its first execution from the types of its operands: two integers, two doubles, a
+ * mix of both, or two strings. The specialized ones only check their guard before computing, and
+ * when it fails the node switches to the generic operation for good.
+ */
+final class BinaryOps {
+    private BinaryOps() {}
+
+    interface Op {
+        Object apply(Expr.Binary expr, Object left, Object right);
+    }
+
+    static final Op GENERIC =
+            (expr, left, right) ->
+                    switch (expr.op.type) {
+                        case PLUS -> Operators.add(left, right, expr.op);
+                        case MINUS -> Operators.subtract(left, right, expr.op);
+                        case STAR -> Operators.multiply(left, right, expr.op);
+                        case SLASH -> Operators.divide(left, right, expr.op);
+                        case LESS -> Operators.less(left, right, expr.op);
+                        case LESS_EQUAL -> Operators.lessEqual(left, right, expr.op);
+                        case GREATER -> Operators.greater(left, right, expr.op);
+                        case GREATER_EQUAL -> Operators.greaterEqual(left, right, expr.op);
+                        case EQUAL_EQUAL -> Objects.equals(left, right);
+                        case BANG_EQUAL -> !Objects.equals(left, right);
+                        default -> throw new RunTimeEvalError(expr.op, "Wrong binary operator.");
+                    };
+
+    private static final Op STRING_PLUS =
+            (expr, left, right) ->
+                    left instanceof String x && right instanceof String y
+                            ? x + y
+                            : generalize(expr, left, right);
+
+    /* Chooses the operation for the operands of the first execution of the expression. */
+    static Op specialize(Expr.Binary expr, Object left, Object right) {
+        TokenType type = expr.op.type;
+        if (type == TokenType.EQUAL_EQUAL || type == TokenType.BANG_EQUAL) return GENERIC;
+        if (left instanceof Integer && right instanceof Integer) return ints(type);
+        if (left instanceof Double && right instanceof Double) return doubles(type);
+        if (isNumber(left) && isNumber(right)) return mixed(type);
+        if (left instanceof String && right instanceof String && type == TokenType.PLUS)
+            return STRING_PLUS;
+        return GENERIC;
+    }
+
+    private static Object generalize(Expr.Binary expr, Object left, Object right) {
+        expr.operation = GENERIC;
+        return GENERIC.apply(expr, left, right);
+    }
+
+    private static Op ints(TokenType type) {
+        return switch (type) {
+            case PLUS ->
+                    (expr, left, right) ->
+                            left instanceof Integer x && right instanceof Integer y
+                                    ? (Object) (x + y)
+                                    : generalize(expr, left, right);
+            case MINUS ->
+                    (expr, left, right) ->
+                            left instanceof Integer x && right instanceof Integer y
+                                    ? (Object) (x - y)
+                                    : generalize(expr, left, right);
+            case STAR ->
+                    (expr, left, right) ->
+                            left instanceof Integer x && right instanceof Integer y
+                                    ? (Object) (x * y)
+                                    : generalize(expr, left, right);
+            case LESS ->
+                    (expr, left, right) ->
+                            left instanceof Integer x && right instanceof Integer y
+                                    ? (Object) (x < y)
+                                    : generalize(expr, left, right);
+            case LESS_EQUAL ->
+                    (expr, left, right) ->
+                            left instanceof Integer x && right instanceof Integer y
+                                    ? (Object) (x <= y)
+                                    : generalize(expr, left, right);
+            case GREATER ->
+                    (expr, left, right) ->
+                            left instanceof Integer x && right instanceof Integer y
+                                    ? (Object) (x > y)
+                                    : generalize(expr, left, right);
+            case GREATER_EQUAL ->
+                    (expr, left, right) ->
+                            left instanceof Integer x && right instanceof Integer y
+                                    ? (Object) (x >= y)
+                                    : generalize(expr, left, right);
+            // Integer division needs the check for zero of the generic operation.
+            default -> GENERIC;
+        };
+    }
+
+    private static Op doubles(TokenType type) {
+        return switch (type) {
+            case PLUS ->
+                    (expr, left, right) ->
+                            left instanceof Double x && right instanceof Double y
+                                    ? (Object) (x + y)
+                                    : generalize(expr, left, right);
+            case MINUS ->
+                    (expr, left, right) ->
+                            left instanceof Double x && right instanceof Double y
+                                    ? (Object) (x - y)
+                                    : generalize(expr, left, right);
+            case STAR ->
+                    (expr, left, right) ->
+                            left instanceof Double x && right instanceof Double y
+                                    ? (Object) (x * y)
+                                    : generalize(expr, left, right);
+            case SLASH ->
+                    (expr, left, right) ->
+                            left instanceof Double x && right instanceof Double y
+                                    ? (Object) (x / y)
+                                    : generalize(expr, left, right);
+            case LESS ->
+                    (expr, left, right) ->
+                            left instanceof Double x && right instanceof Double y
+                                    ? (Object) (x < y)
+                                    : generalize(expr, left, right);
+            case LESS_EQUAL ->
+                    (expr, left, right) ->
+                            left instanceof Double x && right instanceof Double y
+                                    ? (Object) (x <= y)
+                                    : generalize(expr, left, right);
+            case GREATER ->
+                    (expr, left, right) ->
+                            left instanceof Double x && right instanceof Double y
+                                    ? (Object) (x > y)
+                                    : generalize(expr, left, right);
+            case GREATER_EQUAL ->
+                    (expr, left, right) ->
+                            left instanceof Double x && right instanceof Double y
+                                    ? (Object) (x >= y)
+                                    : generalize(expr, left, right);
+            default -> GENERIC;
+        };
+    }
+
+    /* At least one double, where an integer is widened to double. */
+    private static Op mixed(TokenType type) {
+        return switch (type) {
+            case PLUS ->
+                    (expr, left, right) ->
+                            isMixed(left, right)
+                                    ? (Object) (toDouble(left) + toDouble(right))
+                                    : generalize(expr, left, right);
+            case MINUS ->
+                    (expr, left, right) ->
+                            isMixed(left, right)
+                                    ? (Object) (toDouble(left) - toDouble(right))
+                                    : generalize(expr, left, right);
+            case STAR ->
+                    (expr, left, right) ->
+                            isMixed(left, right)
+                                    ? (Object) (toDouble(left) * toDouble(right))
+                                    : generalize(expr, left, right);
+            case SLASH ->
+                    (expr, left, right) ->
+                            isMixed(left, right)
+                                    ? (Object) (toDouble(left) / toDouble(right))
+                                    : generalize(expr, left, right);
+            case LESS ->
+                    (expr, left, right) ->
+                            isMixed(left, right)
+                                    ? (Object) (toDouble(left) < toDouble(right))
+                                    : generalize(expr, left, right);
+            case LESS_EQUAL ->
+                    (expr, left, right) ->
+                            isMixed(left, right)
+                                    ? (Object) (toDouble(left) <= toDouble(right))
+                                    : generalize(expr, left, right);
+            case GREATER ->
+                    (expr, left, right) ->
+                            isMixed(left, right)
+                                    ? (Object) (toDouble(left) > toDouble(right))
+                                    : generalize(expr, left, right);
+            case GREATER_EQUAL ->
+                    (expr, left, right) ->
+                            isMixed(left, right)
+                                    ? (Object) (toDouble(left) >= toDouble(right))
+                                    : generalize(expr, left, right);
+            default -> GENERIC;
+        };
+    }
+
+    private static boolean isMixed(Object left, Object right) {
+        if (left instanceof Double) return isNumber(right);
+        return left instanceof Integer && right instanceof Double;
+    }
+
+    private static boolean isNumber(Object obj) {
+        return obj instanceof Integer || obj instanceof Double;
+    }
+
+    private static double toDouble(Object obj) {
+        return ((Number) obj).doubleValue();
+    }
+}
@@ -0,0 +1,43 @@
+package com.Jlox;
+
+/*
+ * Polymorphic inline cache of an Expr.Call. It remembers the last few callees that passed the type
+ * and arity checks at this call site, so calling one of them again skips the checks. Functions are
+ * keyed on their declaration, since every bound method is a new LoxFunction. A site that sees more
+ * callees than it can hold becomes megamorphic and always takes the slow path.
+ */
+final class CallSite {
+    private static final int SIZE = 4;
+
+    private final Object[] keys = new Object[SIZE];
+    private int size = 0;
+    private boolean megamorphic = false;
+
+    /* Returns the callee to call, checking it first unless it is cached. */
+    LoxCallable check(Object callee, Token paren, int argCount) {
+        Object key = key(callee);
+        if (!megamorphic) {
+            for (int i = 0; i < size; i++) {
+                if (keys[i] == key) return (LoxCallable) callee;
+            }
+        }
+
+        if (!(callee instanceof LoxCallable function))
+            throw new RunTimeEvalError(paren, "Can only call functions and classes.");
+        int arity = function.arity();
+        if (arity != argCount)
+            throw new RunTimeEvalError(
+                    paren, "Expected " + arity + " arguments but got " + argCount + ".");
+
+        if (size == SIZE) {
+            megamorphic = true;
+        } else if (!megamorphic) {
+            keys[size++] = key;
+        }
+        return function;
+    }
+
+    private static Object key(Object callee) {
+        return callee instanceof LoxFunction function ? function.declaration() : callee;
+    }
+}
@@ -0,0 +1,239 @@
+package com.Jlox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Finds the locals that are used from a function nested in the one declaring them. It walks the
+ * tree with the same scoping rules as the NodeCompiler. A declaration is identified by its name
+ * token, by the method for 'this' and by the class for 'super'.
+ */
+public final class CaptureAnalyzer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private record Scope(Map<String, Object> names, int function) {}
+
+    private final List<Scope> scopes = new ArrayList<>();
+    private final Set<Object> captured = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int function = 0;
+
+    private CaptureAnalyzer() {}
+
+    public static Set<Object> analyze(List<Stmt> stmts) {
+        CaptureAnalyzer analyzer = new CaptureAnalyzer();
+        analyzer.resolve(stmts);
+        return analyzer.captured;
+    }
+
+    public static Set<Object> analyze(Expr expr) {
+        CaptureAnalyzer analyzer = new CaptureAnalyzer();
+        analyzer.resolve(expr);
+        return analyzer.captured;
+    }
+
+    private void resolve(List<Stmt> stmts) {
+        for (Stmt stmt : stmts) stmt.accept(this);
+    }
+
+    private void resolve(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void beginScope() {
+        scopes.add(new Scope(new HashMap<>(), function));
+    }
+
+    private void endScope() {
+        scopes.removeLast();
+    }
+
+    private void declare(String name, Object key) {
+        if (!scopes.isEmpty()) scopes.getLast().names().put(name, key);
+    }
+
+    private void reference(String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Scope scope = scopes.get(i);
+            Object key = scope.names().get(name);
+            if (key != null) {
+                if (scope.function() != function) captured.add(key);
+                return;
+            }
+        }
+    }
+
+    private void function(Stmt.Function stmt, boolean isMethod) {
+        function++;
+        beginScope();
+        if (isMethod) declare("this", stmt);
+        for (Token param : stmt.params) declare(param.lexeme, param);
+        // A body the parser skipped is analyzed on its own when it is parsed.
+        if (stmt.body != null) resolve(stmt.body);
+        endScope();
+        function--;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        resolve(stmt.expr);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        resolve(stmt.expr);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) resolve(stmt.initializer);
+        declare(stmt.name.lexeme, stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        resolve(stmt.stmts);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        resolve(stmt.condition);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        resolve(stmt.condition);
+        stmt.body.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        beginScope();
+        if (stmt.initializer != null) stmt.initializer.accept(this);
+        resolve(stmt.condition);
+        stmt.body.accept(this);
+        if (stmt.increment != null) resolve(stmt.increment);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.name.lexeme, stmt.name);
+        function(stmt, false);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) resolve(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        declare(stmt.name.lexeme, stmt.name);
+        if (stmt.superClass != null) {
+            resolve(stmt.superClass);
+            beginScope();
+            declare("super", stmt);
+        }
+        for (Stmt.Function method : stmt.methods) function(method, true);
+        if (stmt.superClass != null) endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        resolve(expr.value);
+        reference(expr.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        resolve(expr.expr);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        reference(expr.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        resolve(expr.callee);
+        for (Expr arg : expr.args) resolve(arg);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        resolve(expr.obj);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        resolve(expr.obj);
+        resolve(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        reference("this");
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        reference("this");
+        reference("super");
+        return null;
+    }
+}
@@ -0,0 +1,10 @@
+package com.Jlox;
+
+/* Holds a local of the tree-walker that is captured by a nested function. */
+final class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
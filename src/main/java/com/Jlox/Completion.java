@@ -0,0 +1,14 @@
+package com.Jlox;
+
+/*
+ * How control leaves a statement run by the Interpreter. The value of a return is left in
+ * Interpreter.returnValue and the loop a break leaves in Interpreter.breakTarget. A return whose
+ * call was left to the trampoline of LoxFunction.invoke completes with TAIL_CALL, which is also
+ * the value such a call evaluates to.
+ */
+enum Completion {
+    NORMAL,
+    RETURN,
+    BREAK,
+    TAIL_CALL
+}
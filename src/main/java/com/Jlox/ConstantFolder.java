@@ -0,0 +1,140 @@
+package com.Jlox;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Folds operators whose operands are constants, drops groupings and the branches and loops that a
+ * constant condition rules out, and replaces the reads of locals that are initialized with a
+ * constant and never assigned. An operation that would fail is left for the engine to run, so that
+ * it fails at the same point as without the pass.
+ *
+ * A first walk over the tree finds the declarations that are assigned anywhere, and the second one
+ * rewrites it.
+ */
+final class ConstantFolder extends ScopedRewriter implements Optimizer.Pass {
+    private final Set<Stmt.Var> assigned = new HashSet<>();
+    /* The value of the locals that are never assigned, by declaration. */
+    private final Map<Stmt.Var, Expr.Literal> constants = new IdentityHashMap<>();
+    private boolean collecting;
+
+    @Override
+    public List<Stmt> run(List<Stmt> stmts) {
+        collecting = true;
+        rewrite(stmts);
+        collecting = false;
+        return rewrite(stmts);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        if (collecting && lookUp(expr.name) instanceof Stmt.Var declaration)
+            assigned.add(declaration);
+        return super.visitAssignExpr(expr);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        if (lookUp(expr.name) instanceof Stmt.Var declaration) {
+            Expr.Literal constant = constants.get(declaration);
+            if (constant != null) return new Expr.Literal(constant.value);
+        }
+        return expr;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        return rewrite(expr.expr);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr.Binary binary = (Expr.Binary) super.visitBinaryExpr(expr);
+        if (binary.left instanceof Expr.Literal left && binary.right instanceof Expr.Literal right) {
+            try {
+                return literal(BinaryOps.GENERIC.apply(binary, left.value, right.value), binary);
+            } catch (RunTimeEvalError err) {
+                return binary;
+            }
+        }
+        return binary;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr.Unary unary = (Expr.Unary) super.visitUnaryExpr(expr);
+        if (!(unary.right instanceof Expr.Literal right)) return unary;
+        return switch (unary.op.type) {
+            case BANG -> new Expr.Literal(!Operators.truthy(right.value));
+            case MINUS ->
+                    right.value instanceof Integer || right.value instanceof Double
+                            ? new Expr.Literal(Operators.negate(right.value, unary.op))
+                            : unary;
+            default -> unary;
+        };
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (!(left instanceof Expr.Literal literal)) return new Expr.Logical(left, expr.op, right);
+        boolean truthy = Operators.truthy(literal.value);
+        return (expr.op.type == TokenType.OR) == truthy ? left : right;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+        if (!(condition instanceof Expr.Literal literal))
+            return new Stmt.If(
+                    condition, rewriteBody(stmt.thenBranch), rewrite(stmt.elseBranch));
+        // The branch left out is still walked, for the assignments it holds.
+        Stmt thenBranch = rewrite(stmt.thenBranch);
+        Stmt elseBranch = rewrite(stmt.elseBranch);
+        return Operators.truthy(literal.value) ? thenBranch : elseBranch;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt body = rewriteBody(stmt.body);
+        if (condition instanceof Expr.Literal literal && !Operators.truthy(literal.value))
+            return null;
+        return new Stmt.While(condition, body, stmt.name);
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        Stmt.For loop = (Stmt.For) super.visitForStmt(stmt);
+        if (!(loop.condition instanceof Expr.Literal literal) || Operators.truthy(literal.value))
+            return loop;
+        // Only the initializer runs, in a scope of its own.
+        return loop.initializer == null ? null : new Stmt.Block(List.of(loop.initializer));
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Stmt.Var var = (Stmt.Var) super.visitVarStmt(stmt);
+        if (!collecting && !assigned.contains(stmt)) {
+            if (var.initializer == null) constants.put(stmt, new Expr.Literal(null));
+            else if (var.initializer instanceof Expr.Literal literal) constants.put(stmt, literal);
+        }
+        return var;
+    }
+
+    /* Only values that every engine can load as a literal are folded. */
+    private static Expr literal(Object value, Expr.Binary unfolded) {
+        return switch (value) {
+            case null -> new Expr.Literal(null);
+            case Boolean b -> new Expr.Literal(b);
+            case Integer i -> new Expr.Literal(i);
+            case Double d -> new Expr.Literal(d);
+            case String s -> new Expr.Literal(s);
+            default -> unfolded;
+        };
+    }
+}
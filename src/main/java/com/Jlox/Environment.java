@@ -3,62 +3,98 @@ package com.Jlox;
 import java.util.HashMap;
 import java.util.Map;
 
+/*
+ * Globals are kept by name, so that the REPL can keep adding them, each in a Cell that it keeps
+ * when it is redefined. Code that uses a global can thus cache its Cell. Every other Environment is
+ * the frame of a function call, or of a block at the top level, with one slot per local numbered by
+ * the Resolver. A local that a nested function captures lives in a Cell in its slot, and the
+ * function keeps that Cell as one of its upvalues instead of the whole frame.
+ */
 public class Environment {
-    private final Map<String, Object> values = new HashMap<>();
-    protected final Environment enclosing;
+    /* How the Resolver found a variable: which one of these holds it and in which slot. */
+    public static final int GLOBAL = -1;
+    public static final int LOCAL = 0;
+    public static final int CELL = 1;
+    public static final int UPVALUE = 2;
 
-    Environment() {
-        this.enclosing = null;
-    }
+    static final Cell[] NO_UPVALUES = new Cell[0];
 
-    Environment(Map<String, Object> initVals) {
-        this(initVals, null);
-    }
+    private final Map<String, Cell> values;
+    private final Object[] slots;
+    private final Cell[] upvalues;
 
-    Environment(Map<String, Object> initVals, Environment enclosing) {
-        this.values.putAll(initVals);
-        this.enclosing = enclosing;
+    Environment(Map<String, Object> initVals) {
+        this.values = new HashMap<>();
+        initVals.forEach(this::define);
+        this.slots = null;
+        this.upvalues = NO_UPVALUES;
     }
 
-    Environment(Environment enclosing) {
-        this.enclosing = enclosing;
+    Environment(Cell[] upvalues, int size) {
+        this.values = null;
+        this.slots = new Object[size];
+        this.upvalues = upvalues;
     }
 
     void define(String name, Object value) {
         // TODO: This allows for variable redefinition. Perhaps it should raise a warning.
-        values.put(name, value);
+        Cell cell = values.get(name);
+        if (cell == null) values.put(name, new Cell(value));
+        else cell.value = value;
+    }
+
+    void define(int slot, Object value, boolean captured) {
+        slots[slot] = captured ? new Cell(value) : value;
+    }
+
+    /* Moves the value of a parameter that a nested function captures into a Cell. */
+    void box(int slot) {
+        slots[slot] = new Cell(slots[slot]);
+    }
+
+    /* Returns the Cell of a global, which is only there once the global is defined. */
+    Cell global(Token name) {
+        Cell cell = values.get(name.lexeme);
+        if (cell == null)
+            throw new RunTimeEvalError(name, "Undefined variable '" + name.lexeme + "'.");
+        return cell;
     }
 
     Object get(Token name) {
-        if (values.containsKey(name.lexeme)) return values.get(name.lexeme);
-        if (enclosing != null) return enclosing.get(name);
-        throw new RunTimeEvalError(name, "Undefined variable '" + name.lexeme + "'.");
+        return global(name).value;
     }
 
     void assign(Token name, Object val) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, val);
-            return;
-        } else if (enclosing != null) {
-            enclosing.assign(name, val);
-            return;
-        }
-        throw new RunTimeEvalError(name, "Undefined variable '" + name.lexeme + "'.");
+        global(name).value = val;
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    Object get(int access, int slot) {
+        return switch (access) {
+            case LOCAL -> slots[slot];
+            case CELL -> ((Cell) slots[slot]).value;
+            default -> upvalues[slot].value;
+        };
     }
 
-    Object getAt(Integer distance, String name) {
-        return ancestor(distance).values.get(name);
+    void assign(int access, int slot, Object value) {
+        switch (access) {
+            case LOCAL -> slots[slot] = value;
+            case CELL -> ((Cell) slots[slot]).value = value;
+            default -> upvalues[slot].value = value;
+        }
     }
 
-    Environment ancestor(int distance) {
-        Environment env = this;
-        for (int i = 0; i < distance; i++) {
-            env = env.enclosing;
+    /* Collects the Cells that a function declared in this frame captures. */
+    Cell[] capture(Stmt.Function function) {
+        int[] indexes = function.upvalueIndexes;
+        if (indexes.length == 0) return NO_UPVALUES;
+        Cell[] cells = new Cell[indexes.length];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] =
+                    function.upvalueIsLocal[i]
+                            ? (Cell) slots[indexes[i]]
+                            : upvalues[indexes[i]];
         }
-        return env;
+        return cells;
     }
 }
@@ -8,15 +8,22 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion> {
 
     final Environment globals =
             new Environment(new HashMap<>(Map.ofEntries(entry("clock", new Clock()))));
 
     private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    /* Profile of the function being run, which counts the iterations of its loops. */
+    Tiering.Profile profile;
+    /* Set by a statement that completes with RETURN or BREAK, for the code it returns to. */
+    Object returnValue;
+    private Stmt breakTarget;
+    /* The call a TAIL_CALL completion leaves to LoxFunction.invoke. */
+    LoxFunction tailFunction;
+    LoxInstance tailReceiver;
+    List<Object> tailArgs;
 
     void interpret(Expr expr) {
         try {
@@ -37,134 +44,245 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
+    /*
+     * The statements that every call runs through, like blocks and returns, call accept directly
+     * rather than through these: each Java frame that a Lox call takes lowers how deep Lox code
+     * can recurse.
+     */
     private Object evaluate(Expr expr) {
-        Object obj;
-        try {
-            obj = expr.accept(this);
-        } catch (ArithmeticException exception) {
-            obj = Float.NaN;
-        }
-        return obj;
+        return expr.accept(this);
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Completion execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    /* Returns the profile of the declaration, which lives on the node to go away with its tree. */
+    private static Tiering.Profile profile(Stmt.Function stmt, boolean isInitializer) {
+        if (stmt.profile == null) stmt.profile = new Tiering.Profile(stmt, isInitializer);
+        return stmt.profile;
     }
 
-    void executeBlock(List<Stmt> stmts, Environment environment) {
+    Completion executeBlock(List<Stmt> stmts, Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
             for (Stmt stmt : stmts) {
-                execute(stmt);
+                Completion completion = stmt.accept(this);
+                if (completion != Completion.NORMAL) return completion;
             }
+            return Completion.NORMAL;
         } finally {
             this.environment = previous;
         }
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
-        environment.define(stmt.name.lexeme, null);
+    public Completion visitClassStmt(Stmt.Class stmt) {
+        // Declared before the methods capture their Cells, so that they can refer to the class.
+        if (stmt.slot < 0) environment.define(stmt.name.lexeme, null);
+        else environment.define(stmt.slot, null, stmt.captured);
 
         Object superClass = null;
+        Environment previous = environment;
         if (stmt.superClass != null) {
             superClass = evaluate(stmt.superClass);
             if (!(superClass instanceof LoxClass))
                 throw new RunTimeEvalError(stmt.name, "Superclass must be a class.");
-            environment = new Environment(Map.of("super", superClass), environment);
+            if (stmt.hasFrame) environment = new Environment(Environment.NO_UPVALUES, 1);
+            environment.define(stmt.superSlot, superClass, true);
         }
 
-        Map<String, LoxFunction> methods = new HashMap<>();
+        Map<String, LoxMethod> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
             boolean IsInitializer = method.name.lexeme.equals("init");
-            methods.put(method.name.lexeme, new LoxFunction(method, environment, IsInitializer));
+            LoxFunction function =
+                    new LoxFunction(
+                            method,
+                            environment.capture(method),
+                            IsInitializer,
+                            profile(method, IsInitializer));
+            methods.put(method.name.lexeme, function);
         }
         LoxClass loxClass = new LoxClass(stmt.name.lexeme, (LoxClass) superClass, methods);
-        if (superClass != null) environment = environment.enclosing;
-        environment.assign(stmt.name, loxClass);
-        return null;
+        environment = previous;
+        if (stmt.slot < 0) environment.assign(stmt.name, loxClass);
+        else environment.assign(access(stmt.captured), stmt.slot, loxClass);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.slot < 0) {
+            Cell[] upvalues = environment.capture(stmt);
+            environment.define(
+                    stmt.name.lexeme, new LoxFunction(stmt, upvalues, false, profile(stmt, false)));
+            return Completion.NORMAL;
+        }
+        // Declared before the function captures its Cells, so that it can call itself.
+        environment.define(stmt.slot, null, stmt.captured);
+        LoxFunction function =
+                new LoxFunction(stmt, environment.capture(stmt), false, profile(stmt, false));
+        environment.assign(access(stmt.captured), stmt.slot, function);
+        return Completion.NORMAL;
+    }
+
+    private static int access(boolean captured) {
+        return captured ? Environment.CELL : Environment.LOCAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
-        if (truthy(evaluate(stmt.condition))) execute(stmt.thenBranch);
-        else if (stmt.elseBranch != null) execute(stmt.elseBranch);
-        return null;
+    public Completion visitIfStmt(Stmt.If stmt) {
+        if (truthy(stmt.condition.accept(this))) return stmt.thenBranch.accept(this);
+        else if (stmt.elseBranch != null) return stmt.elseBranch.accept(this);
+        return Completion.NORMAL;
+    }
+
+    @Override
+    public Completion visitWhileStmt(Stmt.While stmt) {
+        while (truthy(evaluate(stmt.condition))) {
+            Completion completion = execute(stmt.body);
+            if (completion != Completion.NORMAL) {
+                if (completion == Completion.BREAK && breakTarget == stmt) break;
+                return completion;
+            }
+            if (profile != null) profile.backEdges++;
+        }
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Completion visitForStmt(Stmt.For stmt) {
+        Environment previous = this.environment;
         try {
+            if (stmt.hasFrame)
+                this.environment = new Environment(Environment.NO_UPVALUES, stmt.frameSize);
+            if (stmt.initializer != null) execute(stmt.initializer);
+            if (stmt.counted
+                    && environment.get(Environment.LOCAL, ((Stmt.Var) stmt.initializer).slot)
+                            instanceof Integer start) return countedLoop(stmt, start);
             while (truthy(evaluate(stmt.condition))) {
-                execute(stmt.body);
+                Completion completion = execute(stmt.body);
+                if (completion != Completion.NORMAL) {
+                    if (completion == Completion.BREAK && breakTarget == stmt) break;
+                    return completion;
+                }
+                if (stmt.increment != null) evaluate(stmt.increment);
+                if (profile != null) profile.backEdges++;
             }
-        } catch (Break breakException) {
-            if (!((breakException.name == null && stmt.name == null)
-                    || Objects.equals(breakException.name.lexeme, stmt.name.lexeme)))
-                throw breakException;
+            return Completion.NORMAL;
+        } finally {
+            this.environment = previous;
+        }
+    }
+
+    /*
+     * Runs a loop that the Resolver found counted, keeping the counter in an int. Its slot is
+     * written after every increment for the body to read.
+     */
+    private Completion countedLoop(Stmt.For stmt, int counter) {
+        int slot = ((Stmt.Var) stmt.initializer).slot;
+        Expr.Binary test = (Expr.Binary) stmt.condition;
+        while (true) {
+            Object bound = evaluate(test.right);
+            boolean loop =
+                    bound instanceof Integer limit
+                            ? switch (test.op.type) {
+                                case LESS -> counter < limit;
+                                case LESS_EQUAL -> counter <= limit;
+                                case GREATER -> counter > limit;
+                                default -> counter >= limit;
+                            }
+                            : truthy(BinaryOps.GENERIC.apply(test, counter, bound));
+            if (!loop) return Completion.NORMAL;
+            Completion completion = execute(stmt.body);
+            if (completion != Completion.NORMAL) {
+                if (completion == Completion.BREAK && breakTarget == stmt) return Completion.NORMAL;
+                return completion;
+            }
+            counter += stmt.step;
+            environment.assign(Environment.LOCAL, slot, counter);
+            if (profile != null) profile.backEdges++;
         }
-        return null;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
-        Object obj = stmt.value == null ? null : evaluate(stmt.value);
-        throw new Return(obj);
+    public Completion visitReturnStmt(Stmt.Return stmt) {
+        Object value = stmt.value == null ? null : stmt.value.accept(this);
+        if (value == Completion.TAIL_CALL) return Completion.TAIL_CALL;
+        returnValue = value;
+        return Completion.RETURN;
     }
 
     @Override
-    public Void visitBreakStmt(Stmt.Break stmt) {
-        throw new Break(stmt.name);
+    public Completion visitBreakStmt(Stmt.Break stmt) {
+        breakTarget = stmt.loop;
+        return Completion.BREAK;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object val = evaluate(expr.value);
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, val);
+        if (expr.access != Environment.GLOBAL) {
+            environment.assign(expr.access, expr.slot, val);
         } else {
-            globals.assign(expr.name, val);
+            if (expr.global == null) expr.global = globals.global(expr.name);
+            expr.global.value = val;
         }
         return val;
     }
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
-        if (!(callee instanceof LoxCallable function)) {
-            throw new RunTimeEvalError(expr.lastParen, "Can only call functions and classes.");
+        Object callee;
+        if (expr.callee instanceof Expr.Get get) {
+            Object obj = evaluate(get.obj);
+            if (!(obj instanceof LoxInstance inst))
+                throw new RunTimeEvalError(get.name, "Only instances have properties.");
+            LoxMethod method = get.site.method(inst, get.name);
+            if (method != null) return invoke(expr, method, inst);
+            callee = get.site.field(inst);
+        } else {
+            callee = evaluate(expr.callee);
+        }
+        List<Expr> args = expr.args;
+        LoxCallable function = expr.site.check(callee, expr.lastParen, args.size());
+        List<Object> argVals = new ArrayList<>(args.size());
+        for (Expr arg : args) {
+            argVals.add(evaluate(arg));
         }
+        if (!(function instanceof LoxFunction lox)) return function.call(this, argVals);
+        if (expr.tail) return lox.tailCall(this, argVals);
+        return lox.invoke(this, lox.receiver(), argVals);
+    }
+
+    /* Calls obj.method(args) passing the receiver, with no bound method in between. */
+    private Object invoke(Expr.Call expr, LoxMethod method, LoxInstance receiver) {
         List<Expr> args = expr.args;
-        if (function.arity() != args.size()) {
+        if (method.arity() != args.size())
             throw new RunTimeEvalError(
                     expr.lastParen,
-                    "Expected " + function.arity() + " arguments but got " + args.size() + ".");
-        }
-        List<Object> argVals = new ArrayList<>();
+                    "Expected " + method.arity() + " arguments but got " + args.size() + ".");
+        List<Object> argVals = new ArrayList<>(args.size());
         for (Expr arg : args) {
             argVals.add(evaluate(arg));
         }
-        return function.call(this, argVals);
+        if (expr.tail && method instanceof LoxFunction function)
+            return function.tailCall(this, receiver, argVals);
+        return method.invoke(this, receiver, argVals);
+    }
+
+    /* Makes a call in tail position of a hot function, which returns what this returns. */
+    Object tailCall(LoxCallable callee, List<Object> args) {
+        if (callee instanceof LoxFunction function) return function.tailCall(this, args);
+        return callee.call(this, args);
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
         Object obj = evaluate(expr.obj);
         if (obj instanceof LoxInstance inst) {
-            return inst.get(expr.name);
+            return expr.site.get(inst, expr.name);
         }
         throw new RunTimeEvalError(expr.name, "Only instances have properties.");
     }
@@ -175,39 +293,44 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         if (!(obj instanceof LoxInstance inst))
             throw new RunTimeEvalError(expr.name, "Only instances have fields.");
         Object value = evaluate(expr.value);
-        inst.set(expr.name, value);
+        expr.site.set(inst, expr.name, value);
         return value;
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block block) {
-        executeBlock(block.stmts, new Environment(this.environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block block) {
+        if (!block.hasFrame) return executeBlock(block.stmts, this.environment);
+        return executeBlock(
+                block.stmts, new Environment(Environment.NO_UPVALUES, block.frameSize));
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
         Object obj = stmt.initializer == null ? null : evaluate(stmt.initializer);
-        environment.define(stmt.name.lexeme, obj);
-        return null;
+        if (stmt.slot < 0) environment.define(stmt.name.lexeme, obj);
+        else environment.define(stmt.slot, obj, stmt.captured);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
-        Object obj = evaluate(stmt.expr);
+    public Completion visitPrintStmt(Stmt.Print stmt) {
+        Object obj = stmt.expr.accept(this);
         System.out.println(makeString(obj));
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
-        evaluate(stmt.expr);
-        return null;
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.expr.accept(this);
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        if (expr.access != Environment.GLOBAL) return environment.get(expr.access, expr.slot);
+        // A global defined later in the script is looked up again until it is found.
+        if (expr.global == null) expr.global = globals.global(expr.name);
+        return expr.global.value;
     }
 
     @Override
@@ -223,115 +346,12 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitBinaryExpr(Expr.Binary expr) {
         Object lobj = evaluate(expr.left);
         Object robj = evaluate(expr.right);
-        PairTypes pairTypes = new PairTypes(lobj, robj);
-        String ltype = pairTypes.ltype;
-        String rtype = pairTypes.rtype;
-        return switch (expr.op.type) {
-            case PLUS -> {
-                Object object;
-                if (ltype == null || rtype == null)
-                    throw new RunTimeEvalError(
-                            expr.op, "Operands must be two numbers or two strings.");
-                else if (ltype.equals("f") && rtype.equals("f"))
-                    object = (double) lobj + (double) robj;
-                else if (ltype.equals("f") && rtype.equals("i"))
-                    object = (double) lobj + (int) robj;
-                else if (ltype.equals("i") && rtype.equals("f"))
-                    object = (int) lobj + (double) robj;
-                else if (ltype.equals("i") && rtype.equals("i")) object = (int) lobj + (int) robj;
-                else if (ltype.equals("s") && rtype.equals("s")) object = lobj + (String) robj;
-                else
-                    throw new RunTimeEvalError(
-                            expr.op, "Operands must be two numbers or two strings.");
-                yield object;
-            }
-            case STAR -> {
-                Object object;
-                if (ltype == null || rtype == null)
-                    throw new RunTimeEvalError(expr.op, "Operands must be numbers.");
-                else if (ltype.equals("f") && rtype.equals("f"))
-                    object = (double) lobj * (double) robj;
-                else if (ltype.equals("f") && rtype.equals("i"))
-                    object = (double) lobj * (int) robj;
-                else if (ltype.equals("i") && rtype.equals("f"))
-                    object = (int) lobj * (double) robj;
-                else if (ltype.equals("i") && rtype.equals("i")) object = (int) lobj * (int) robj;
-                else throw new RunTimeEvalError(expr.op, "Operands must be numbers.");
-                yield object;
-            }
-            case SLASH -> {
-                Object object;
-                if (ltype == null || rtype == null)
-                    throw new RunTimeEvalError(expr.op, "Operands must be numbers.");
-                else if (ltype.equals("f") && rtype.equals("f"))
-                    object = (double) lobj / (double) robj;
-                else if (ltype.equals("f") && rtype.equals("i"))
-                    object = (double) lobj / (int) robj;
-                else if (ltype.equals("i") && rtype.equals("f"))
-                    object = (int) lobj / (double) robj;
-                else if (ltype.equals("i") && rtype.equals("i")) object = (int) lobj / (int) robj;
-                else throw new RunTimeEvalError(expr.op, "Operands must be numbers.");
-                yield object;
-            }
-            case MINUS -> {
-                Object object;
-                if (ltype.equals("f") && rtype.equals("f")) object = (double) lobj - (double) robj;
-                else if (ltype.equals("f") && rtype.equals("i"))
-                    object = (double) lobj - (int) robj;
-                else if (ltype.equals("i") && rtype.equals("f"))
-                    object = (int) lobj - (double) robj;
-                else if (ltype.equals("i") && rtype.equals("i")) object = (int) lobj - (int) robj;
-                else throw new RunTimeEvalError(expr.op, "Operands must be numbers.");
-                yield object;
-            }
-            case EQUAL_EQUAL -> Objects.equals(lobj, robj);
-            case LESS -> {
-                Object object;
-                if (ltype.equals("f") && rtype.equals("f")) object = (double) lobj < (double) robj;
-                else if (ltype.equals("f") && rtype.equals("i"))
-                    object = (double) lobj < (int) robj;
-                else if (ltype.equals("i") && rtype.equals("f"))
-                    object = (int) lobj < (double) robj;
-                else if (ltype.equals("i") && rtype.equals("i")) object = (int) lobj < (int) robj;
-                else throw new RunTimeEvalError(expr.op, "Operands must be numbers.");
-                yield object;
-            }
-            case GREATER -> {
-                Object object;
-                if (ltype.equals("f") && rtype.equals("f")) object = (double) lobj > (double) robj;
-                else if (ltype.equals("f") && rtype.equals("i"))
-                    object = (double) lobj > (int) robj;
-                else if (ltype.equals("i") && rtype.equals("f"))
-                    object = (int) lobj > (double) robj;
-                else if (ltype.equals("i") && rtype.equals("i")) object = (int) lobj > (int) robj;
-                else throw new RunTimeEvalError(expr.op, "Operands must be numbers.");
-                yield object;
-            }
-            case LESS_EQUAL -> {
-                Object object;
-                if (ltype.equals("f") && rtype.equals("f")) object = (double) lobj <= (double) robj;
-                else if (ltype.equals("f") && rtype.equals("i"))
-                    object = (double) lobj <= (int) robj;
-                else if (ltype.equals("i") && rtype.equals("f"))
-                    object = (int) lobj <= (double) robj;
-                else if (ltype.equals("i") && rtype.equals("i")) object = (int) lobj <= (int) robj;
-                else throw new RunTimeEvalError(expr.op, "Operands must be numbers.");
-                yield object;
-            }
-            case GREATER_EQUAL -> {
-                Object object;
-                if (ltype.equals("f") && rtype.equals("f")) object = (double) lobj >= (double) robj;
-                else if (ltype.equals("f") && rtype.equals("i"))
-                    object = (double) lobj >= (int) robj;
-                else if (ltype.equals("i") && rtype.equals("f"))
-                    object = (int) lobj >= (double) robj;
-                else if (ltype.equals("i") && rtype.equals("i")) object = (int) lobj >= (int) robj;
-                else throw new RunTimeEvalError(expr.op, "Operands must be numbers.");
-                yield object;
-            }
-            case BANG_EQUAL -> !Objects.equals(lobj, robj);
-            default -> throw new RunTimeEvalError(expr.op, "Wrong binary operator.");
-        };
+        BinaryOps.Op operation = expr.operation;
+        if (operation == null) {
+            operation = BinaryOps.specialize(expr, lobj, robj);
+            expr.operation = operation;
+        }
+        return operation.apply(expr, lobj, robj);
     }
 
     @Override
@@ -348,17 +368,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitUnaryExpr(Expr.Unary expr) {
         Object obj = evaluate(expr.right);
         return switch (expr.op.type) {
-            case MINUS -> {
-                switch (PairTypes.getType(obj)) {
-                    case "f" -> {
-                        yield -(double) obj;
-                    }
-                    case "i" -> {
-                        yield -(int) obj;
-                    }
-                    default -> throw new RunTimeEvalError(expr.op, "Operand must be a number.");
-                }
-            }
+            case MINUS -> Operators.negate(obj, expr.op);
             case BANG -> !truthy(obj);
             default -> throw new RunTimeEvalError(expr.op, "Not a unary operator.");
         };
@@ -366,19 +376,22 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.access, expr.slot);
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superClass = (LoxClass) environment.getAt(distance, "super");
-        LoxInstance obj = (LoxInstance) environment.getAt(distance - 1, "this");
-        LoxFunction func = superClass.findMethod(expr.method.lexeme);
-        if (func == null)
-            throw new RunTimeEvalError(
-                    expr.keyword, "Undefined property '" + expr.method.lexeme + "'.");
-        return func.bind(obj);
+        LoxClass superClass = (LoxClass) environment.get(expr.access, expr.slot);
+        LoxInstance obj = (LoxInstance) environment.get(expr.thisAccess, expr.thisSlot);
+        if (expr.cachedClass != superClass) {
+            LoxMethod func = superClass.findMethod(expr.method.lexeme);
+            if (func == null)
+                throw new RunTimeEvalError(
+                        expr.keyword, "Undefined property '" + expr.method.lexeme + "'.");
+            expr.cachedClass = superClass;
+            expr.cachedMethod = func;
+        }
+        return expr.cachedMethod.bind(obj);
     }
 
     static String makeString(Object obj) {
@@ -392,10 +405,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return true;
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        Object obj =
-                distance == null ? globals.get(name) : environment.getAt(distance, name.lexeme);
-        return obj;
+    private Object lookUpVariable(Token name, int access, int slot) {
+        return access == Environment.GLOBAL ? globals.get(name) : environment.get(access, slot);
     }
 }
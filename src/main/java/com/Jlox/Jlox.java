@@ -1,16 +1,23 @@
 package com.Jlox;
 
+import com.Jlox.closure.ClosureEngine;
+import com.Jlox.jvm.AotCompiler;
+import com.Jlox.vm.VM;
+
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Jlox {
     private static boolean hadError = false;
     private static boolean hadRuntimeError = false;
     private static final Interpreter interpreter = new Interpreter();
+    private static final VM vm = new VM();
+    private static final ClosureEngine closureEngine = new ClosureEngine();
     private static final AstPrinter astPrinter = new AstPrinter();
 
     static int MAX_ARITY = 255;
@@ -18,12 +25,18 @@ public class Jlox {
 
     private static OperationMode opMode = OperationMode.NONE;
     private static Phase phase = Phase.NONE;
+    private static Engine engine = Engine.TREE;
+    private static boolean optimize = true;
+    private static boolean threadedScan = false;
+    private static boolean parallelParse = false;
+    private static boolean lazyParse = false;
 
     enum OperationMode {
         NONE,
         SCRIPT,
         CONSOLE,
-        COMMAND
+        COMMAND,
+        COMPILE
     }
 
     enum Phase {
@@ -33,36 +46,84 @@ public class Jlox {
         INTERPRETER
     }
 
+    public enum Engine {
+        TREE,
+        CLOSURE,
+        VM
+    }
+
+    public static void setEngine(Engine engine) {
+        Jlox.engine = engine;
+    }
+
+    public static void setOptimize(boolean optimize) {
+        Jlox.optimize = optimize;
+    }
+
+    /* Scans on a thread of its own, feeding the parser through a bounded queue. */
+    public static void setThreadedScan(boolean threadedScan) {
+        Jlox.threadedScan = threadedScan;
+    }
+
+    /* Parses large inputs in chunks on a ForkJoinPool. It scans all the tokens first. */
+    public static void setParallelParse(boolean parallelParse) {
+        Jlox.parallelParse = parallelParse;
+    }
+
+    /*
+     * Skips the bodies of the functions and methods at the top level, only checking their syntax,
+     * and parses each on its first call. Only the tree engine runs such bodies.
+     *
+     * Unlike the eager mode, errors that only the Resolver finds in a skipped body, like reading
+     * a local in its own initializer or 'return' with a value in an initializer, are reported
+     * when the body is first called, and not at all if it never is.
+     */
+    public static void setLazyParse(boolean lazyParse) {
+        Jlox.lazyParse = lazyParse;
+    }
+
+    /* Lets the tree engine compile a function after this many calls or loop iterations. */
+    public static void setTierThresholds(int calls, int loopIterations) {
+        Tiering.callThreshold = calls;
+        Tiering.loopThreshold = loopIterations;
+    }
+
+    public static boolean isDebugMode() {
+        return DEBUG_MODE;
+    }
+
     public static void run(String str) {
         hadError = false;
         hadRuntimeError = false;
-        LoxScanner scanner = new LoxScanner(str);
-        List<Token> tokens = scanner.scanTokens();
-        if (DEBUG_MODE) tokens.forEach(System.out::println);
-        Parser parser = new Parser(tokens);
-        Resolver resolver = new Resolver(interpreter);
-        // TODO: This should be more robust.
-        if (isListOfStmts(tokens)) {
-            phase = Phase.PARSER;
-            List<Stmt> stmts = parser.parse();
+        Resolver resolver = new Resolver();
+        Parser.Input input = parse(str, lazyParse && engine == Engine.TREE);
+        if (input.expr() == null) {
+            List<Stmt> stmts = input.stmts();
             if (DEBUG_MODE) System.out.println(stmts.stream().map(astPrinter::print));
             if (hadError) return;
             phase = Phase.RESOLVER;
             resolver.resolve(stmts);
             if (hadError) return;
+            if (optimize) stmts = Optimizer.optimize(stmts);
             phase = Phase.INTERPRETER;
-            interpreter.interpret(stmts);
-        } else if (!(tokens.isEmpty()
-                || (tokens.size() == 1 && tokens.getFirst().type == TokenType.EOF))) {
-            phase = Phase.PARSER;
-            Expr expr = parser.parseSingleExpr();
+            switch (engine) {
+                case TREE -> interpreter.interpret(stmts);
+                case CLOSURE -> closureEngine.interpret(stmts);
+                case VM -> vm.interpret(stmts);
+            }
+        } else {
+            Expr expr = input.expr();
             if (DEBUG_MODE) System.out.println(astPrinter.print(expr));
             if (hadError) return;
             phase = Phase.RESOLVER;
             resolver.resolve(expr);
             if (hadError) return;
             phase = Phase.INTERPRETER;
-            interpreter.interpret(expr);
+            switch (engine) {
+                case TREE -> interpreter.interpret(expr);
+                case CLOSURE -> closureEngine.interpret(expr);
+                case VM -> vm.interpret(expr);
+            }
         }
     }
 
@@ -76,6 +137,82 @@ public class Jlox {
         if (hadRuntimeError) throw new LoxError(70);
     }
 
+    /* Compiles a script into an executable jar instead of running it. */
+    public static void compileFile(Path scriptPath, Path jarPath) throws IOException {
+        hadError = false;
+        Parser.Input input = parse(Files.readString(scriptPath), false);
+        // A lone expression is compiled like the interpreter runs it, printing its value.
+        List<Stmt> stmts =
+                input.expr() == null ? input.stmts() : List.of(new Stmt.Print(input.expr()));
+        if (!hadError) {
+            phase = Phase.RESOLVER;
+            new Resolver().resolve(stmts);
+        }
+        if (!hadError && optimize) stmts = Optimizer.optimize(stmts);
+        if (!hadError) AotCompiler.compile(stmts, scriptPath, jarPath);
+        if (hadError) throw new LoxError(65);
+    }
+
+    /* Parses the source, skipping the bodies at the top level if lazy is set. */
+    private static Parser.Input parse(String source, boolean lazy) {
+        phase = Phase.PARSER;
+        if (parallelParse) {
+            // All the errors of a scan up front would come before those of the parser. A source
+            // with any is parsed sequentially instead, which reports both in order.
+            LoxScanner scanner = new LoxScanner(source, false);
+            List<Token> tokens = scanner.scanTokens();
+            if (scanner.errors() == 0) {
+                if (DEBUG_MODE) tokens.forEach(System.out::println);
+                return ParallelParser.parseInput(tokens, lazy ? scanner.src : null);
+            }
+        }
+        LoxScanner scanner = new LoxScanner(source);
+        return new Parser(tokens(scanner), true, lazy ? scanner.src : null).parseInput();
+    }
+
+    /*
+     * Parses, resolves and optimizes a body that the parser skipped, on the first call of its
+     * function. A method is resolved in a class of its own, to find 'this'.
+     */
+    static void parseBody(Stmt.Function declaration) {
+        LazyBody lazy = declaration.lazy;
+        Phase running = phase;
+        phase = Phase.PARSER;
+        Stmt.Function function = new Stmt.Function(declaration.name, declaration.params);
+        function.body = lazy.parse();
+        Stmt unit =
+                lazy.className() == null
+                        ? function
+                        : new Stmt.Class(lazy.className(), null, List.of(function));
+        List<Stmt> stmts = List.of(unit);
+        phase = Phase.RESOLVER;
+        new Resolver().resolve(stmts);
+        if (!hadError && optimize) stmts = Optimizer.optimize(stmts);
+        phase = running;
+        if (hadError)
+            throw new RunTimeEvalError(
+                    declaration.name, "Cannot run '" + declaration.name.lexeme + "'.");
+        function =
+                stmts.getFirst() instanceof Stmt.Class parsed
+                        ? parsed.methods.getFirst()
+                        : (Stmt.Function) stmts.getFirst();
+        declaration.body = function.body;
+        declaration.frameSize = function.frameSize;
+        declaration.cells = function.cells;
+        declaration.lazy = null;
+    }
+
+    /* Streams the tokens of the scanner, scanned on a thread of their own if asked to. */
+    private static TokenStream tokens(LoxScanner scanner) {
+        TokenStream tokens = threadedScan ? new ThreadedScanner(scanner) : scanner;
+        if (!DEBUG_MODE) return tokens;
+        return () -> {
+            Token token = tokens.next();
+            System.out.println(token);
+            return token;
+        };
+    }
+
     public static void runPrompt() throws IOException {
         try (InputStreamReader input = new InputStreamReader(System.in);
                 BufferedReader reader = new BufferedReader(input)) {
@@ -94,12 +231,12 @@ public class Jlox {
         System.err.println("[line " + (line + 1) + "] Error" + where + ": " + message);
     }
 
-    static void error(int line, String errorMsg) {
+    public static void error(int line, String errorMsg) {
         hadError = true;
         report(line, "", errorMsg);
     }
 
-    static void error(Token token, String errorMsg) {
+    public static void error(Token token, String errorMsg) {
         hadError = true;
         if (token.type == TokenType.EOF) {
             report(token.line, " at end", errorMsg);
@@ -108,7 +245,7 @@ public class Jlox {
         }
     }
 
-    static void runTimeError(RunTimeEvalError err) {
+    public static void runTimeError(RunTimeEvalError err) {
         hadRuntimeError = true;
         // TODO: Add line after passing tests.
         System.err.println(err.getMessage()); // + "\n[Line:" + err.token.line + "]");
@@ -120,21 +257,64 @@ public class Jlox {
     }
 
     private static void checkArgs(String[] args) throws IOException {
-        if (args.length == 0) {
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--debug")) DEBUG_MODE = true;
+            else if (arg.equals("--no-opt")) optimize = false;
+            else if (arg.equals("--threaded-scan")) threadedScan = true;
+            else if (arg.equals("--parallel-parse")) parallelParse = true;
+            else if (arg.equals("--lazy-parse")) lazyParse = true;
+            else if (arg.startsWith("--engine=")) engine = parseEngine(arg.substring(9));
+            else if (arg.startsWith("--tier-calls=")) Tiering.callThreshold = parseCount(arg);
+            else if (arg.startsWith("--tier-loops=")) Tiering.loopThreshold = parseCount(arg);
+            else if (arg.equals("--tier-trace")) Tiering.trace = true;
+            else if (arg.startsWith("--max-depth=")) VM.setMaxFrames(parseCount(arg, 1));
+            else positional.add(arg);
+        }
+        if (positional.isEmpty()) {
             opMode = OperationMode.CONSOLE;
             runPrompt();
-        } else if (args[0].equals("-c")) {
+        } else if (positional.getFirst().equals("-c")) {
             opMode = OperationMode.COMMAND;
-            if (args.length < 2) ArgErr();
-            String command = args[1];
-            if (args.length == 3 && args[2].equals("--debug")) DEBUG_MODE = true;
-            else if (args.length > 2) ArgErr();
-            run(command);
+            if (positional.size() != 2) ArgErr();
+            run(positional.get(1));
+        } else if (positional.getFirst().equals("compile")) {
+            opMode = OperationMode.COMPILE;
+            if (positional.size() == 2) {
+                String script = positional.get(1);
+                compileFile(Path.of(script), Path.of(script.replaceFirst("(\\.lox)?$", ".jar")));
+            } else if (positional.size() == 4 && positional.get(2).equals("-o")) {
+                compileFile(Path.of(positional.get(1)), Path.of(positional.get(3)));
+            } else ArgErr();
         } else {
             opMode = OperationMode.SCRIPT;
-            if (args.length == 2 && args[1].equals("--debug")) DEBUG_MODE = true;
-            else if (args.length > 2) ArgErr();
-            runFile(args[0]);
+            if (positional.size() != 1) ArgErr();
+            runFile(positional.getFirst());
+        }
+    }
+
+    private static Engine parseEngine(String name) {
+        try {
+            return Engine.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException err) {
+            ArgErr();
+            return null;
+        }
+    }
+
+    private static int parseCount(String arg) {
+        return parseCount(arg, 0);
+    }
+
+    /* Parses the count after the '=' of the argument, which must be at least min. */
+    private static int parseCount(String arg, int min) {
+        try {
+            int count = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+            if (count < min) ArgErr();
+            return count;
+        } catch (NumberFormatException err) {
+            ArgErr();
+            return 0;
         }
     }
 
@@ -146,11 +326,10 @@ public class Jlox {
         }
     }
 
-    private static boolean isListOfStmts(List<Token> tokens) {
-        if (tokens.size() <= 1) return false;
-        TokenType tokenType = tokens.get(tokens.size() - 2).type;
-        return (tokenType == TokenType.SEMICOLON || tokenType == TokenType.RIGHT_BRACE);
-    }
-
-    private static final String UsageMessg = "Usage: Jlox [Script|-c command]";
+    private static final String UsageMessg =
+            "Usage: Jlox [--debug] [--no-opt] [--engine=tree|closure|vm] [Script|-c command]\n"
+                    + "       Jlox compile Script [-o Jar]\n"
+                    + "Front end: [--threaded-scan] [--parallel-parse] [--lazy-parse]\n"
+                    + "Tree engine tiering: [--tier-calls=N] [--tier-loops=N] [--tier-trace]\n"
+                    + "VM engine: [--max-depth=N]";
 }
@@ -0,0 +1,17 @@
+package com.Jlox;
+
+import java.util.List;
+
+/*
+ * Where in the source lies a function body that the Parser skipped, from its '{' to its '}'. Only
+ * the bodies of functions and methods declared at the top level are skipped: they can only refer
+ * to globals and to locals of their own, so they can be resolved on their own once called. The
+ * body of a method keeps the name of its class, to be resolved inside it.
+ */
+record LazyBody(char[] source, int from, int to, int line, Token className) {
+
+    /* Parses the body, whose syntax the PreParser already checked. */
+    List<Stmt> parse() {
+        return new Parser(new LoxScanner(source, from, to, line)).parseBody();
+    }
+}
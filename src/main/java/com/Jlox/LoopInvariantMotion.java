@@ -0,0 +1,236 @@
+package com.Jlox;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+/*
+ * Moves the expressions of a loop whose inputs the loop does not change into temporaries computed
+ * right before it. Since those run even when the loop body never does, only expressions that
+ * cannot fail nor have an effect are moved: operators over literals and locals, where the operands
+ * of arithmetic and comparisons are locals that only ever hold numbers. Calls, property accesses
+ * and globals stay where they are.
+ *
+ * A first walk over the tree records the locals, what is assigned to them and which of them every
+ * loop assigns. The second one moves the expressions out of the outermost loop they are invariant
+ * in.
+ */
+final class LoopInvariantMotion extends ScopedRewriter implements Optimizer.Pass {
+    private static class Local {
+        final List<Expr> values = new ArrayList<>();
+        final int functionDepth;
+        /* Whether a nested function assigns it, which any call in a loop may then do. */
+        boolean assignedByClosure = false;
+        boolean isNumber = true;
+
+        Local(Expr initializer, int functionDepth) {
+            values.add(initializer);
+            this.functionDepth = functionDepth;
+        }
+    }
+
+    private record Loop(Set<Stmt.Var> assigned, List<Stmt> hoisted) {}
+
+    private final Map<Stmt.Var, Local> locals = new IdentityHashMap<>();
+    private final Map<Expr.Variable, Stmt.Var> reads = new IdentityHashMap<>();
+    private final Map<Stmt, Set<Stmt.Var>> assignedInLoop = new IdentityHashMap<>();
+    private Stack<Loop> loops = new Stack<>();
+    private boolean collecting;
+    private int temporaries = 0;
+
+    @Override
+    public List<Stmt> run(List<Stmt> stmts) {
+        collecting = true;
+        rewrite(stmts);
+        inferNumbers();
+        collecting = false;
+        return rewrite(stmts);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Stmt var = super.visitVarStmt(stmt);
+        if (collecting && lookUp(stmt.name) == stmt) {
+            Expr initializer = stmt.initializer == null ? new Expr.Literal(null) : stmt.initializer;
+            locals.put(stmt, new Local(initializer, functionDepth));
+            assigned(stmt);
+        }
+        return var;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        if (collecting && lookUp(expr.name) instanceof Stmt.Var declaration) {
+            Local local = locals.get(declaration);
+            local.values.add(expr.value);
+            if (local.functionDepth != functionDepth) local.assignedByClosure = true;
+            assigned(declaration);
+        }
+        return super.visitAssignExpr(expr);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        if (collecting && lookUp(expr.name) instanceof Stmt.Var declaration)
+            reads.put(expr, declaration);
+        return expr;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Loop loop = enterLoop(stmt);
+        return leaveLoop(stmt, loop, super.visitWhileStmt(stmt));
+    }
+
+    /* The initializer is walked in the loop too, so that its locals are never hoisted past it. */
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        Loop loop = enterLoop(stmt);
+        return leaveLoop(stmt, loop, super.visitForStmt(stmt));
+    }
+
+    private Loop enterLoop(Stmt stmt) {
+        Set<Stmt.Var> assigned = collecting ? new HashSet<>() : assignedInLoop.get(stmt);
+        Loop loop = new Loop(assigned, new ArrayList<>());
+        loops.push(loop);
+        return loop;
+    }
+
+    /* Puts the loop in a block after the temporaries hoisted out of it, if any. */
+    private Stmt leaveLoop(Stmt stmt, Loop loop, Stmt rewritten) {
+        loops.pop();
+        if (collecting) assignedInLoop.put(stmt, loop.assigned());
+        if (loop.hoisted().isEmpty()) return rewritten;
+        List<Stmt> block = loop.hoisted();
+        block.add(rewritten);
+        return new Stmt.Block(block);
+    }
+
+    @Override
+    Stmt.Function function(Stmt.Function stmt) {
+        // The body runs when the function is called, not in the loops around its declaration.
+        if (collecting) return super.function(stmt);
+        Stack<Loop> enclosing = loops;
+        loops = new Stack<>();
+        Stmt.Function function = super.function(stmt);
+        loops = enclosing;
+        return function;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr hoisted = hoist(expr);
+        return hoisted != null ? hoisted : super.visitBinaryExpr(expr);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr hoisted = hoist(expr);
+        return hoisted != null ? hoisted : super.visitUnaryExpr(expr);
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr hoisted = hoist(expr);
+        return hoisted != null ? hoisted : super.visitLogicalExpr(expr);
+    }
+
+    /* Marks a local as assigned by all the loops being walked. */
+    private void assigned(Stmt.Var declaration) {
+        for (Loop loop : loops) loop.assigned().add(declaration);
+    }
+
+    /* Keeps a local a number only while everything assigned to it is one. */
+    private void inferNumbers() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Local local : locals.values()) {
+                if (local.isNumber && !local.values.stream().allMatch(this::isNumber)) {
+                    local.isNumber = false;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private boolean isNumber(Expr expr) {
+        return switch (expr) {
+            case Expr.Literal literal ->
+                    literal.value instanceof Integer || literal.value instanceof Double;
+            case Expr.Variable variable -> {
+                Stmt.Var declaration = reads.get(variable);
+                yield declaration != null && locals.get(declaration).isNumber;
+            }
+            case Expr.Grouping grouping -> isNumber(grouping.expr);
+            case Expr.Unary unary -> unary.op.type == TokenType.MINUS && isNumber(unary.right);
+            // An integer division by zero gives a NaN that the operators do not take as a number.
+            case Expr.Binary binary ->
+                    switch (binary.op.type) {
+                        case PLUS, MINUS, STAR -> isNumber(binary.left) && isNumber(binary.right);
+                        default -> false;
+                    };
+            default -> false;
+        };
+    }
+
+    /*
+     * Returns whether the expression can neither fail nor have an effect, adding the locals it
+     * reads to inputs.
+     */
+    private boolean isPure(Expr expr, Set<Stmt.Var> inputs) {
+        return switch (expr) {
+            case Expr.Literal literal -> true;
+            case Expr.Variable variable -> {
+                Stmt.Var declaration = reads.get(variable);
+                if (declaration == null || locals.get(declaration).assignedByClosure) yield false;
+                inputs.add(declaration);
+                yield true;
+            }
+            case Expr.Grouping grouping -> isPure(grouping.expr, inputs);
+            case Expr.Unary unary ->
+                    (unary.op.type == TokenType.BANG || isNumber(unary.right))
+                            && isPure(unary.right, inputs);
+            case Expr.Binary binary ->
+                    (binary.op.type == TokenType.EQUAL_EQUAL
+                                    || binary.op.type == TokenType.BANG_EQUAL
+                                    || (isNumber(binary.left) && isNumber(binary.right)))
+                            && isPure(binary.left, inputs)
+                            && isPure(binary.right, inputs);
+            case Expr.Logical logical ->
+                    isPure(logical.left, inputs) && isPure(logical.right, inputs);
+            default -> false;
+        };
+    }
+
+    /* Moves the expression out of the outermost loop it is invariant in, if any. */
+    private Expr hoist(Expr expr) {
+        if (collecting || loops.isEmpty()) return null;
+        Set<Stmt.Var> inputs = new HashSet<>();
+        if (!isPure(expr, inputs) || inputs.isEmpty()) return null;
+        for (Loop loop : loops) {
+            if (inputs.stream().noneMatch(loop.assigned()::contains)) {
+                Token name = temporary(expr);
+                loop.hoisted().add(new Stmt.Var(name, expr));
+                return new Expr.Variable(name);
+            }
+        }
+        return null;
+    }
+
+    /* Names the temporary after the line of the expression, with a character no identifier has. */
+    private Token temporary(Expr expr) {
+        int line =
+                switch (expr) {
+                    case Expr.Binary binary -> binary.op.line;
+                    case Expr.Unary unary -> unary.op.line;
+                    case Expr.Logical logical -> logical.op.line;
+                    default -> 0;
+                };
+        return new Token(TokenType.IDENTIFIER, "$" + temporaries++, null, line);
+    }
+}
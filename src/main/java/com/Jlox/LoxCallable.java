@@ -1,9 +1,15 @@
 package com.Jlox;
 
+import java.util.Arrays;
 import java.util.List;
 
 public interface LoxCallable {
     Object call(Interpreter interpreter, List<Object> args);
 
     int arity();
+
+    /* Entry point for compiled code, which keeps its arguments in an array. */
+    default Object call(Object[] args) {
+        return call(null, Arrays.asList(args));
+    }
 }
@@ -1,17 +1,27 @@
 package com.Jlox;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class LoxClass implements LoxCallable {
     private final String name;
-    private final LoxClass superClass;
-    private final Map<String, LoxFunction> methods;
+    /* Own and inherited methods. A class can't change once defined, so neither does the table. */
+    private final Map<String, LoxMethod> methods;
+    /* Shape of the instances of this class before they get any field. */
+    final Shape emptyShape = new Shape();
+    /* How to construct an instance: the initializer, found once in the chain, and its arity. */
+    private final LoxMethod initializer;
+    private final int arity;
+    /* Fields the last instance had after its initializer, to size the storage of the next. */
+    private int expectedFields = 0;
 
-    LoxClass(String name, LoxClass superClass, Map<String, LoxFunction> methods) {
+    public LoxClass(String name, LoxClass superClass, Map<String, LoxMethod> methods) {
         this.name = name;
-        this.superClass = superClass;
-        this.methods = methods;
+        this.methods = superClass == null ? new HashMap<>() : new HashMap<>(superClass.methods);
+        this.methods.putAll(methods);
+        this.initializer = this.methods.get("init");
+        this.arity = initializer == null ? 0 : initializer.arity();
     }
 
     @Override
@@ -21,21 +31,21 @@ public class LoxClass implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> args) {
-        LoxInstance instance = new LoxInstance(this);
-        LoxFunction initFunc = findMethod("init");
-        if (initFunc != null) initFunc.bind(instance).call(interpreter, args);
+        LoxInstance instance = new LoxInstance(this, expectedFields);
+        if (initializer != null) {
+            // Invoked on the instance directly, without a bound method in between.
+            initializer.invoke(interpreter, instance, args);
+            expectedFields = instance.shape.size();
+        }
         return instance;
     }
 
     @Override
     public int arity() {
-        LoxFunction initFunc = findMethod("init");
-        return (initFunc == null) ? 0 : initFunc.arity();
+        return arity;
     }
 
-    LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) return methods.get(name);
-        else if (superClass != null) return superClass.findMethod(name);
-        else return null;
+    public LoxMethod findMethod(String name) {
+        return methods.get(name);
     }
 }
@@ -2,26 +2,47 @@ package com.Jlox;
 
 import java.util.List;
 
-public class LoxFunction implements LoxCallable {
+public class LoxFunction implements LoxMethod {
 
     private final Stmt.Function declaration;
-    private final Environment closure;
+    private final Cell[] upvalues;
     private final boolean IsInitializer;
+    private final Tiering.Profile profile;
+    private final LoxInstance receiver;
 
-    LoxFunction(Stmt.Function declaration, Environment closure, boolean IsInitializer) {
+    LoxFunction(
+            Stmt.Function declaration,
+            Cell[] upvalues,
+            boolean IsInitializer,
+            Tiering.Profile profile) {
+        this(declaration, upvalues, IsInitializer, profile, null);
+    }
+
+    private LoxFunction(
+            Stmt.Function declaration,
+            Cell[] upvalues,
+            boolean IsInitializer,
+            Tiering.Profile profile,
+            LoxInstance receiver) {
         this.declaration = declaration;
-        this.closure = closure;
+        this.upvalues = upvalues;
         this.IsInitializer = IsInitializer;
+        this.profile = profile;
+        this.receiver = receiver;
     }
 
-    LoxFunction(Stmt.Function declaration, Environment closure) {
-        this(declaration, closure, false);
+    @Override
+    public LoxFunction bind(LoxInstance instance) {
+        return new LoxFunction(declaration, upvalues, IsInitializer, profile, instance);
     }
 
-    LoxFunction bind(LoxInstance instance) {
-        Environment env = new Environment(closure);
-        env.define("this", instance);
-        return new LoxFunction(declaration, env, IsInitializer);
+    Stmt.Function declaration() {
+        return declaration;
+    }
+
+    /* The instance this is bound to, or null. */
+    LoxInstance receiver() {
+        return receiver;
     }
 
     @Override
@@ -31,16 +52,66 @@ public class LoxFunction implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> args) {
-        Environment env = new Environment(closure);
-        for (int i = 0; i < arity(); i++) {
-            env.define(declaration.params.get(i).lexeme, args.get(i));
-        }
+        return invoke(interpreter, receiver, args);
+    }
+
+    /*
+     * Runs the body, then the functions it tail calls, in a loop. Tail recursion thus runs in
+     * constant stack space. The body runs right here rather than in a method of its own, since
+     * every Java frame that a Lox call takes lowers how deep Lox code can recurse. The Interpreter
+     * calls this directly rather than through call() for the same reason.
+     */
+    @Override
+    public Object invoke(Interpreter interpreter, LoxInstance receiver, List<Object> args) {
+        LoxFunction function = this;
+        Tiering.Profile caller = interpreter.profile;
         try {
-            interpreter.executeBlock(declaration.body, env);
-        } catch (Return ret) {
-            return IsInitializer ? closure.getAt(0, "this") : ret.value;
+            while (true) {
+                Stmt.Function declaration = function.declaration;
+                if (declaration.lazy != null) Jlox.parseBody(declaration);
+                Tiering.HotFunction hot = function.profile.hot();
+                Object result;
+                if (hot != null) {
+                    result = hot.call(interpreter, receiver, function.upvalues, args);
+                } else {
+                    Environment env = new Environment(function.upvalues, declaration.frameSize);
+                    int first = 0;
+                    if (declaration.isMethod) env.define(first++, receiver, false);
+                    for (int i = 0; i < args.size(); i++) {
+                        env.define(first + i, args.get(i), false);
+                    }
+                    for (int slot : declaration.cells) env.box(slot);
+                    interpreter.profile = function.profile;
+                    Completion completion = interpreter.executeBlock(declaration.body, env);
+                    if (function.IsInitializer) return receiver;
+                    result =
+                            switch (completion) {
+                                case RETURN -> interpreter.returnValue;
+                                case TAIL_CALL -> Completion.TAIL_CALL;
+                                default -> null;
+                            };
+                }
+                if (result != Completion.TAIL_CALL) return result;
+                function = interpreter.tailFunction;
+                receiver = interpreter.tailReceiver;
+                args = interpreter.tailArgs;
+            }
+        } finally {
+            interpreter.profile = caller;
         }
-        return IsInitializer ? closure.getAt(0, "this") : null;
+    }
+
+    /* Leaves a call in tail position to the loop of invoke(), unless this is an initializer. */
+    Object tailCall(Interpreter interpreter, LoxInstance receiver, List<Object> args) {
+        if (IsInitializer) return invoke(interpreter, receiver, args);
+        interpreter.tailFunction = this;
+        interpreter.tailReceiver = receiver;
+        interpreter.tailArgs = args;
+        return Completion.TAIL_CALL;
+    }
+
+    Object tailCall(Interpreter interpreter, List<Object> args) {
+        return tailCall(interpreter, receiver, args);
     }
 
     @Override
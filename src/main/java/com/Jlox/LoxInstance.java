@@ -1,19 +1,25 @@
 package com.Jlox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class LoxInstance {
-    private final LoxClass loxClass;
-    private final Map<String, Object> fields = new HashMap<>();
+    private static final Object[] NO_FIELDS = {};
 
-    public LoxInstance(LoxClass loxClass) {
+    final LoxClass loxClass;
+    Shape shape;
+    Object[] fields = NO_FIELDS;
+
+    /* The storage for the fields starts with room for the given number of them. */
+    public LoxInstance(LoxClass loxClass, int capacity) {
         this.loxClass = loxClass;
+        this.shape = loxClass.emptyShape;
+        if (capacity > 0) this.fields = new Object[capacity];
     }
 
-    Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) return fields.get(name.lexeme);
-        LoxFunction func = loxClass.findMethod(name.lexeme);
+    public Object get(Token name) {
+        int slot = shape.slot(name.lexeme);
+        if (slot >= 0) return fields[slot];
+        LoxMethod func = loxClass.findMethod(name.lexeme);
         if (func != null) return func.bind(this);
         throw new RunTimeEvalError(name, "Undefined property '" + name.lexeme + "'.");
     }
@@ -24,6 +30,16 @@ public class LoxInstance {
     }
 
     public void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        int slot = shape.slot(name.lexeme);
+        if (slot < 0) slot = addField(shape.with(name.lexeme));
+        fields[slot] = value;
+    }
+
+    /* Moves to a shape with one more field and returns the slot of that field. */
+    int addField(Shape next) {
+        shape = next;
+        int slot = next.size() - 1;
+        if (slot == fields.length) fields = Arrays.copyOf(fields, Math.max(4, 2 * slot));
+        return slot;
     }
 }
@@ -0,0 +1,13 @@
+package com.Jlox;
+
+import java.util.List;
+
+/* A function that can be stored in a LoxClass and bound to one of its instances. */
+public interface LoxMethod extends LoxCallable {
+    LoxCallable bind(LoxInstance instance);
+
+    /* Calls the method on the receiver without creating a bound method first. */
+    default Object invoke(Interpreter interpreter, LoxInstance receiver, List<Object> args) {
+        return bind(receiver).call(interpreter, args);
+    }
+}
@@ -3,11 +3,7 @@ package com.Jlox;
 import static com.Jlox.TokenType.*;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 enum NumberPart {
     INTEGER,
@@ -15,194 +11,316 @@ enum NumberPart {
     EXP
 }
 
-public class LoxScanner {
+/*
+ * Splits the source into tokens in one pass over its characters. Characters are classified with a
+ * table, keywords are matched by a trie unrolled into switches, and the lexemes of keywords and
+ * operators are constants. Identifiers are interned as they are scanned, so that every use of a
+ * name shares one String and only its first one copies it out of the source.
+ *
+ * Tokens are scanned as they are pulled, and scanTokens() collects all of them for the callers
+ * that want a list.
+ */
+public class LoxScanner implements TokenStream {
+    private static final byte DIGIT = 1;
+    private static final byte ALPHA = 2;
+    private static final byte SPACE = 4;
+    /* Classes of the ASCII characters. Other characters can only be whitespace. */
+    private static final byte[] CLASSES = new byte[128];
+    /* Lexemes of the keywords, by the ordinal of their type. */
+    private static final String[] KEYWORDS = new String[TokenType.values().length];
+
+    static {
+        for (char chr = 0; chr < CLASSES.length; chr++) {
+            if (chr >= '0' && chr <= '9') CLASSES[chr] |= DIGIT;
+            if ((chr >= 'a' && chr <= 'z') || (chr >= 'A' && chr <= 'Z') || chr == '_')
+                CLASSES[chr] |= ALPHA;
+            if (Character.isWhitespace(chr)) CLASSES[chr] |= SPACE;
+        }
+        for (int i = AND.ordinal(); i <= BREAK.ordinal(); i++)
+            KEYWORDS[i] = TokenType.values()[i].name().toLowerCase();
+    }
+
     int start = 0;
     int current = 0;
     int line = 0;
-    int column = 0;
-    final String src;
-    List<Token> tokens;
+    final char[] src;
+    /* Where the part of the source being scanned ends. */
+    private final int end;
+    /* Whether errors go to Jlox.error, or are only counted. */
+    private final boolean report;
+    private int errors = 0;
+    /* The token the last call to scanToken() found, if any. */
+    private Token token;
+    /* Open addressing table of the identifiers seen so far. */
+    private String[] names = new String[256];
+    private int nameCount = 0;
 
-    private static final Map<String, TokenType> keywords;
+    public LoxScanner(String src) {
+        this(src, true);
+    }
 
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and", AND);
-        keywords.put("class", CLASS);
-        keywords.put("else", ELSE);
-        keywords.put("false", FALSE);
-        keywords.put("for", FOR);
-        keywords.put("fun", FUN);
-        keywords.put("if", IF);
-        keywords.put("nil", NIL);
-        keywords.put("or", OR);
-        keywords.put("print", PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super", SUPER);
-        keywords.put("this", THIS);
-        keywords.put("true", TRUE);
-        keywords.put("var", VAR);
-        keywords.put("while", WHILE);
-        keywords.put("break", BREAK);
+    LoxScanner(String src, boolean report) {
+        this.src = src.toCharArray();
+        this.end = this.src.length;
+        this.report = report;
     }
 
-    public LoxScanner(String src) {
+    /* Scans the characters from from to to of the source, the first of them being on line. */
+    LoxScanner(char[] src, int from, int to, int line) {
         this.src = src;
-        this.tokens = new ArrayList<>();
+        this.end = to;
+        this.current = from;
+        this.line = line;
+        this.report = true;
+    }
+
+    int errors() {
+        return errors;
     }
 
     public List<Token> scanTokens() {
+        List<Token> tokens = new ArrayList<>((end - current) / 4 + 1);
+        Token token;
+        do {
+            token = next();
+            tokens.add(token);
+        } while (token.type != EOF);
+        return tokens;
+    }
+
+    @Override
+    public Token next() {
         while (notEOF()) {
             start = current;
             scanToken();
+            if (token != null) {
+                Token next = token;
+                token = null;
+                return next;
+            }
         }
-        addToken(TokenType.EOF, "\\0");
-        return tokens;
+        return new Token(EOF, "\\0", null, line, current);
     }
 
     void scanToken() {
-        char chr = advance();
+        char chr = src[current++];
         switch (chr) {
-            case '(' -> addToken(LEFT_PAREN);
-            case ')' -> addToken(RIGHT_PAREN);
-            case '{' -> addToken(LEFT_BRACE);
-            case '}' -> addToken(RIGHT_BRACE);
-            case ',' -> addToken(COMMA);
-            case '.' -> addToken(DOT);
-            case '-' -> addToken(MINUS);
-            case '+' -> addToken(PLUS);
-            case ';' -> addToken(SEMICOLON);
-            case '*' -> addToken(STAR);
-            case '!' -> addToken(match('=') ? BANG_EQUAL : BANG);
-            case '=' -> addToken(match('=') ? EQUAL_EQUAL : EQUAL);
-            case '>' -> addToken(match('=') ? GREATER_EQUAL : GREATER);
-            case '<' -> addToken(match('=') ? LESS_EQUAL : LESS);
+            case '(' -> addToken(LEFT_PAREN, "(");
+            case ')' -> addToken(RIGHT_PAREN, ")");
+            case '{' -> addToken(LEFT_BRACE, "{");
+            case '}' -> addToken(RIGHT_BRACE, "}");
+            case ',' -> addToken(COMMA, ",");
+            case '.' -> addToken(DOT, ".");
+            case '-' -> addToken(MINUS, "-");
+            case '+' -> addToken(PLUS, "+");
+            case ';' -> addToken(SEMICOLON, ";");
+            case '*' -> addToken(STAR, "*");
+            case '!' -> addToken(BANG, "!", BANG_EQUAL, "!=");
+            case '=' -> addToken(EQUAL, "=", EQUAL_EQUAL, "==");
+            case '>' -> addToken(GREATER, ">", GREATER_EQUAL, ">=");
+            case '<' -> addToken(LESS, "<", LESS_EQUAL, "<=");
             case '/' -> {
                 if (match('/')) parseComment();
-                else addToken(SLASH);
+                else addToken(SLASH, "/");
             }
-
+            case '\n' -> line++;
             case '"' -> parseString();
             default -> {
-                if (isWhiteSpace(chr) || chr == '\n') break;
-                else if (isDigit(chr)) parseNumber();
-                else if (isAlpha(chr)) parseIdentifier();
-                else
-                    Jlox.error(
-                            line, String.format("Unexpected character %s.", src.charAt(current)));
+                if (is(chr, SPACE)) break;
+                else if (is(chr, DIGIT)) parseNumber();
+                else if (is(chr, ALPHA)) parseIdentifier();
+                else error(line, String.format("Unexpected character %s.", peek()));
             }
         }
     }
 
     void parseIdentifier() {
-        while (isValidIdChar(peek())) advance();
-        addToken();
+        while (current < end && is(src[current], DIGIT | ALPHA)) current++;
+        int length = current - start;
+        TokenType type = keyword(length);
+        if (type == IDENTIFIER) addToken(IDENTIFIER, name(length));
+        else addToken(type, KEYWORDS[type.ordinal()]);
     }
 
     void parseString() {
         int origLine = line;
-        while (peek() != '"' && notEOF()) advance();
-        if (!notEOF()) Jlox.error(origLine, "Unterminated string.");
-        advance();
-        addStringToken(origLine);
+        while (notEOF() && src[current] != '"') {
+            if (src[current] == '\n') line++;
+            current++;
+        }
+        if (!notEOF()) error(origLine, "Unterminated string.");
+        else current++;
+        String lexeme = new String(src, start + 1, Math.max(0, current - start - 2));
+        token = new Token(STRING, lexeme, lexeme, origLine, start);
     }
 
+    /*
+     * A malformed number is reported where it is found rather than thrown, since the scanner may
+     * run while the parser is in the middle of a statement, or on a thread of its own.
+     */
     void parseNumber() {
         NumberPart part = NumberPart.INTEGER;
+        boolean malformed = false;
         loop:
         while (notEOF()) {
-            char chr = peek();
+            char chr = src[current];
             switch (chr) {
                 case '.' -> {
                     if (part == NumberPart.INTEGER) {
                         part = NumberPart.FRACT;
-                    } else throw new Parser.ParseError();
+                    } else malformed = true;
                 }
                 case 'e' -> {
                     if ((part == NumberPart.INTEGER) || (part == NumberPart.FRACT)) {
                         part = NumberPart.EXP;
-                    } else throw new Parser.ParseError();
+                    } else malformed = true;
                 }
                 default -> {
-                    if (!isDigit(chr)) break loop;
+                    if (!is(chr, DIGIT)) break loop;
                 }
             }
-            advance();
+            current++;
+        }
+        String lexeme = new String(src, start, current - start);
+        TokenType type = part == NumberPart.INTEGER ? INTEGER : FLOAT;
+        Object value = malformed ? null : value(type, lexeme);
+        if (value == null) error(line, "Malformed number '" + lexeme + "'.");
+        addToken(type, lexeme, value);
+    }
+
+    /* Returns the value of a number, or null if it is out of range or misses its exponent. */
+    private static Object value(TokenType type, String lexeme) {
+        try {
+            if (type == INTEGER) return Integer.parseInt(lexeme);
+            return Double.parseDouble(lexeme);
+        } catch (NumberFormatException err) {
+            return null;
         }
-        String lexeme = src.substring(start, current);
-        if (part == NumberPart.INTEGER) addToken(INTEGER, lexeme, Integer.parseInt(lexeme));
-        else addToken(FLOAT, lexeme, Double.parseDouble(lexeme));
     }
 
     void parseComment() {
-        while (notEOF() && (peek() != '\n')) advance();
+        while (notEOF() && src[current] != '\n') current++;
     }
 
-    private static boolean isWhiteSpace(Character chr) {
-        return Character.isWhitespace(chr);
+    private static boolean is(char chr, int classes) {
+        if (chr < CLASSES.length) return (CLASSES[chr] & classes) != 0;
+        return (classes & SPACE) != 0 && Character.isWhitespace(chr);
     }
 
-    private static boolean isDigit(Character chr) {
-        return chr >= '0' && chr <= '9';
+    /* Returns the type of the keyword the identifier just scanned spells, or IDENTIFIER. */
+    private TokenType keyword(int length) {
+        return switch (src[start]) {
+            case 'a' -> keyword(length, "and", AND);
+            case 'b' -> keyword(length, "break", BREAK);
+            case 'c' -> keyword(length, "class", CLASS);
+            case 'e' -> keyword(length, "else", ELSE);
+            case 'f' ->
+                    length < 3
+                            ? IDENTIFIER
+                            : switch (src[start + 1]) {
+                                case 'a' -> keyword(length, "false", FALSE);
+                                case 'o' -> keyword(length, "for", FOR);
+                                case 'u' -> keyword(length, "fun", FUN);
+                                default -> IDENTIFIER;
+                            };
+            case 'i' -> keyword(length, "if", IF);
+            case 'n' -> keyword(length, "nil", NIL);
+            case 'o' -> keyword(length, "or", OR);
+            case 'p' -> keyword(length, "print", PRINT);
+            case 'r' -> keyword(length, "return", RETURN);
+            case 's' -> keyword(length, "super", SUPER);
+            case 't' ->
+                    length < 4
+                            ? IDENTIFIER
+                            : switch (src[start + 1]) {
+                                case 'h' -> keyword(length, "this", THIS);
+                                case 'r' -> keyword(length, "true", TRUE);
+                                default -> IDENTIFIER;
+                            };
+            case 'v' -> keyword(length, "var", VAR);
+            case 'w' -> keyword(length, "while", WHILE);
+            default -> IDENTIFIER;
+        };
     }
 
-    private static boolean isAlpha(Character chr) {
-        return (chr >= 'a' && chr <= 'z') || (chr >= 'A' && chr <= 'Z') || chr == '_';
+    /* The first character is known to match, since the trie switched on it. */
+    private TokenType keyword(int length, String keyword, TokenType type) {
+        if (length != keyword.length()) return IDENTIFIER;
+        for (int i = 1; i < length; i++) {
+            if (src[start + i] != keyword.charAt(i)) return IDENTIFIER;
+        }
+        return type;
     }
 
-    private static final Set<Character> ValidInId = new HashSet<>();
+    /* Returns the interned String of the identifier just scanned. */
+    private String name(int length) {
+        int hash = 0;
+        for (int i = start; i < current; i++) hash = 31 * hash + src[i];
+        int mask = names.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            String name = names[i];
+            if (name == null) {
+                name = new String(src, start, length);
+                names[i] = name;
+                if (2 * ++nameCount > names.length) growNames();
+                return name;
+            }
+            if (name.hashCode() == hash && sameName(name, length)) return name;
+        }
+    }
 
-    private static boolean isValidIdChar(Character chr) {
-        return isAlpha(chr) || isDigit(chr) || ValidInId.contains(chr);
+    private boolean sameName(String name, int length) {
+        if (name.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != src[start + i]) return false;
+        }
+        return true;
+    }
+
+    private void growNames() {
+        String[] old = names;
+        names = new String[2 * old.length];
+        int mask = names.length - 1;
+        for (String name : old) {
+            if (name == null) continue;
+            int i = name.hashCode() & mask;
+            while (names[i] != null) i = (i + 1) & mask;
+            names[i] = name;
+        }
     }
 
     boolean match(char candidate) {
-        if (notEOF() && src.charAt(current) == candidate) {
+        if (notEOF() && src[current] == candidate) {
             current++;
             return true;
         }
         return false;
     }
 
-    void addToken() {
-        String lexeme = src.substring(start, current);
-        addToken(keywords.getOrDefault(lexeme, IDENTIFIER), lexeme);
-    }
-
-    void addToken(TokenType tokenType) {
-        String lexeme = src.substring(start, current).replace("\n", "\\n");
-        tokens.add(new Token(tokenType, lexeme, null, line));
-    }
-
     void addToken(TokenType tokenType, String lexeme) {
-        tokens.add(new Token(tokenType, lexeme, null, line));
+        token = new Token(tokenType, lexeme, null, line, start);
     }
 
-    void addStringToken(int origLine) {
-        String lexeme = src.substring(start + 1, current - 1);
-        tokens.add(new Token(STRING, lexeme, lexeme, origLine));
+    void addToken(TokenType tokenType, String lexeme, Object obj) {
+        token = new Token(tokenType, lexeme, obj, line, start);
     }
 
-    void addToken(TokenType tokenType, String lexeme, Object obj) {
-        tokens.add(new Token(tokenType, lexeme, obj, line));
+    /* Adds the two character token if the next character is '=', or else the one character one. */
+    void addToken(TokenType one, String oneLexeme, TokenType two, String twoLexeme) {
+        if (match('=')) addToken(two, twoLexeme);
+        else addToken(one, oneLexeme);
     }
 
     private char peek() {
-        return notEOF() ? src.charAt(current) : '\0';
+        return notEOF() ? src[current] : '\0';
     }
 
-    private char advance() {
-        if (notEOF()) {
-            char chr = src.charAt(current++);
-            if (chr == '\n') {
-                column = 0;
-                line++;
-            } else column++;
-            return chr;
-        } else return '\0';
+    boolean notEOF() {
+        return current < end;
     }
 
-    boolean notEOF() {
-        return current < src.length();
+    private void error(int line, String msg) {
+        errors++;
+        if (report) Jlox.error(line, msg);
     }
 }
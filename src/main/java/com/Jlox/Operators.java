@@ -0,0 +1,92 @@
+package com.Jlox;
+
+/*
+ * Semantics of the Lox operators on boxed values, shared by the compiled engines. They follow the
+ * Interpreter: integers stay integers, mixing them with floats gives floats, and an integer
+ * division by zero gives NaN.
+ */
+public final class Operators {
+    private Operators() {}
+
+    public static Object add(Object a, Object b, Token op) {
+        if (a instanceof Integer x && b instanceof Integer y) return x + y;
+        if (a instanceof String x && b instanceof String y) return x + y;
+        if (isNumber(a) && isNumber(b)) return toDouble(a) + toDouble(b);
+        throw new RunTimeEvalError(op, "Operands must be two numbers or two strings.");
+    }
+
+    public static Object subtract(Object a, Object b, Token op) {
+        if (a instanceof Integer x && b instanceof Integer y) return x - y;
+        checkNumbers(a, b, op);
+        return toDouble(a) - toDouble(b);
+    }
+
+    public static Object multiply(Object a, Object b, Token op) {
+        if (a instanceof Integer x && b instanceof Integer y) return x * y;
+        checkNumbers(a, b, op);
+        return toDouble(a) * toDouble(b);
+    }
+
+    public static Object divide(Object a, Object b, Token op) {
+        if (a instanceof Integer x && b instanceof Integer y) {
+            if (y == 0) return Float.NaN;
+            return x / y;
+        }
+        checkNumbers(a, b, op);
+        return toDouble(a) / toDouble(b);
+    }
+
+    public static boolean greater(Object a, Object b, Token op) {
+        if (a instanceof Integer x && b instanceof Integer y) return x > y;
+        checkNumbers(a, b, op);
+        return toDouble(a) > toDouble(b);
+    }
+
+    public static boolean greaterEqual(Object a, Object b, Token op) {
+        if (a instanceof Integer x && b instanceof Integer y) return x >= y;
+        checkNumbers(a, b, op);
+        return toDouble(a) >= toDouble(b);
+    }
+
+    public static boolean less(Object a, Object b, Token op) {
+        if (a instanceof Integer x && b instanceof Integer y) return x < y;
+        checkNumbers(a, b, op);
+        return toDouble(a) < toDouble(b);
+    }
+
+    public static boolean lessEqual(Object a, Object b, Token op) {
+        if (a instanceof Integer x && b instanceof Integer y) return x <= y;
+        checkNumbers(a, b, op);
+        return toDouble(a) <= toDouble(b);
+    }
+
+    public static Object negate(Object a, Token op) {
+        if (a instanceof Integer x) return -x;
+        if (a instanceof Double x) return -x;
+        throw new RunTimeEvalError(op, "Operand must be a number.");
+    }
+
+    public static boolean truthy(Object obj) {
+        if (obj == null) return false;
+        else if (obj instanceof Boolean objB) return objB;
+        return true;
+    }
+
+    public static String stringify(Object obj) {
+        if (obj == null) return "nil";
+        return obj.toString();
+    }
+
+    private static boolean isNumber(Object obj) {
+        return obj instanceof Integer || obj instanceof Double;
+    }
+
+    private static double toDouble(Object obj) {
+        return ((Number) obj).doubleValue();
+    }
+
+    private static void checkNumbers(Object a, Object b, Token op) {
+        if (!isNumber(a) || !isNumber(b))
+            throw new RunTimeEvalError(op, "Operands must be numbers.");
+    }
+}
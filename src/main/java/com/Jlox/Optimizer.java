@@ -0,0 +1,26 @@
+package com.Jlox;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/*
+ * Optimization passes run between the Resolver and the engines. Each pass rewrites the resolved
+ * tree into a new one, which is resolved again before the next pass since its nodes are new.
+ */
+final class Optimizer {
+    private Optimizer() {}
+
+    interface Pass {
+        List<Stmt> run(List<Stmt> stmts);
+    }
+
+    private static final List<Supplier<Pass>> PASSES = List.of(ConstantFolder::new, LoopInvariantMotion::new);
+
+    static List<Stmt> optimize(List<Stmt> stmts) {
+        for (Supplier<Pass> pass : PASSES) {
+            stmts = pass.get().run(stmts);
+            new Resolver().resolve(stmts);
+        }
+        return stmts;
+    }
+}
@@ -0,0 +1,96 @@
+package com.Jlox;
+
+import static com.Jlox.TokenType.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/*
+ * Parses the tokens of a large input in chunks on the common ForkJoinPool. The chunks start at
+ * the declarations at the top level, found by tracking the depth of braces and parentheses, and
+ * their statements are put back together in source order.
+ *
+ * The parsers of the chunks only count their errors. If any of them finds one, the whole input is
+ * parsed again by a single parser that reports them, since a chunk boundary in a broken program
+ * need not be one for the parser. Errors are thus reported just as without this mode. The tokens
+ * hold no errors of the scanner: Jlox parses a source with any sequentially.
+ */
+final class ParallelParser {
+    /* Fewest tokens worth a task of their own. */
+    private static final int MIN_CHUNK = 8192;
+    /* Chunks per worker of the pool, so that uneven ones still keep every worker busy. */
+    private static final int CHUNKS_PER_WORKER = 4;
+
+    private record Chunk(List<Stmt> stmts, int errors) {}
+
+    private ParallelParser() {}
+
+    /* Parses the tokens of the source, which is only given if the top level bodies are skipped. */
+    static Parser.Input parseInput(List<Token> tokens, char[] source) {
+        List<Integer> starts = chunkStarts(tokens);
+        if (starts.size() < 2) return parse(tokens, source);
+
+        List<ForkJoinTask<Chunk>> tasks = new ArrayList<>(starts.size());
+        for (int i = 0; i < starts.size(); i++) {
+            int from = starts.get(i);
+            int to = i + 1 < starts.size() ? starts.get(i + 1) : tokens.size();
+            tasks.add(ForkJoinPool.commonPool().submit(() -> parse(tokens, from, to, source)));
+        }
+        List<Stmt> stmts = new ArrayList<>();
+        int errors = 0;
+        for (ForkJoinTask<Chunk> task : tasks) {
+            Chunk chunk = task.join();
+            errors += chunk.errors();
+            stmts.addAll(chunk.stmts());
+        }
+        if (errors > 0) return parse(tokens, source);
+        return new Parser.Input(stmts, null);
+    }
+
+    private static Parser.Input parse(List<Token> tokens, char[] source) {
+        return new Parser(stream(tokens, 0, tokens.size()), true, source).parseInput();
+    }
+
+    private static Chunk parse(List<Token> tokens, int from, int to, char[] source) {
+        Parser parser = new Parser(stream(tokens, from, to), false, source);
+        List<Stmt> stmts = parser.parse();
+        return new Chunk(stmts, parser.errors());
+    }
+
+    /* Returns the index of the first token of every chunk, the first one being 0. */
+    private static List<Integer> chunkStarts(List<Token> tokens) {
+        int workers = ForkJoinPool.getCommonPoolParallelism();
+        int chunk = Math.max(MIN_CHUNK, tokens.size() / (workers * CHUNKS_PER_WORKER));
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        int depth = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            switch (tokens.get(i).type) {
+                case LEFT_BRACE, LEFT_PAREN -> depth++;
+                case RIGHT_BRACE, RIGHT_PAREN -> depth--;
+                case FUN, CLASS, VAR -> {
+                    if (depth == 0 && i - starts.getLast() >= chunk) starts.add(i);
+                }
+                default -> {}
+            }
+        }
+        return starts;
+    }
+
+    /* Streams the tokens from from to to, and then an EOF. */
+    private static TokenStream stream(List<Token> tokens, int from, int to) {
+        Token last = tokens.get(to - 1);
+        Token eof =
+                last.type == EOF ? last : new Token(EOF, "\\0", null, last.line, last.offset);
+        return new TokenStream() {
+            private int next = from;
+
+            @Override
+            public Token next() {
+                return next < to ? tokens.get(next++) : eof;
+            }
+        };
+    }
+}
@@ -4,20 +4,43 @@ import static com.Jlox.Jlox.MAX_ARITY;
 import static com.Jlox.TokenType.*;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
+/*
+ * Recursive descent parser. It pulls its tokens from a TokenStream and only keeps the last one it
+ * consumed and the one it looks at, so the tokens of the input are never all held at once.
+ *
+ * Given the source, it skips the bodies of the functions and methods at the top level, only
+ * checking them with a PreParser, and leaves them to be parsed on their first call.
+ */
 public class Parser {
-    private final List<Token> tokens;
-    private int current;
+    /* What an input holds: statements, or a lone expression whose value the REPL prints. */
+    record Input(List<Stmt> stmts, Expr expr) {}
 
-    public Parser(List<Token> tokens) {
+    private final TokenStream tokens;
+    /* Whether errors go to Jlox.error, or are only counted. */
+    private final boolean report;
+    /* The source of the tokens, if the bodies at the top level are to be skipped. */
+    private final char[] source;
+    /* Number of blocks around the current token. */
+    private int depth = 0;
+    private int errors = 0;
+    private Token previous;
+    private Token current;
+
+    public Parser(TokenStream tokens) {
+        this(tokens, true, null);
+    }
+
+    Parser(TokenStream tokens, boolean report, char[] source) {
         this.tokens = tokens;
-        this.current = 0;
+        this.report = report;
+        this.source = source;
+        this.current = tokens.next();
     }
 
-    Expr parseSingleExpr() {
-        return expression();
+    int errors() {
+        return errors;
     }
 
     /*TODO: This only needs to be public for testing: Make package private?*/
@@ -29,10 +52,43 @@ public class Parser {
         return statements;
     }
 
+    /*
+     * Parses a whole input. One that starts with an expression that runs up to the end, with no
+     * ';' after it, is that lone expression.
+     */
+    Input parseInput() {
+        List<Stmt> statements = new ArrayList<>();
+        if (!EoF() && !startsStatement()) {
+            try {
+                Expr expr = expression();
+                if (EoF()) return new Input(statements, expr);
+                consume(SEMICOLON, "Expect ';' after expression.");
+                statements.add(new Stmt.Expression(expr));
+            } catch (ParseError err) {
+                synchronize();
+            }
+        }
+        while (!EoF()) statements.add(declaration());
+        return new Input(statements, null);
+    }
+
+    /* Parses a function body, from its '{' on. */
+    List<Stmt> parseBody() {
+        consume(LEFT_BRACE, "Expect '{' before function body.");
+        return block();
+    }
+
+    private boolean startsStatement() {
+        return switch (peek().type) {
+            case VAR, FUN, CLASS, PRINT, LEFT_BRACE, IF, WHILE, FOR, RETURN, BREAK -> true;
+            default -> false;
+        };
+    }
+
     private Stmt declaration() {
         try {
             if (match(VAR)) return varDeclaration();
-            else if (match(FUN)) return funDeclaration("function");
+            else if (match(FUN)) return funDeclaration("function", skipsBodies(), null);
             else if (match(CLASS)) return classDeclaration();
             else return statement();
         } catch (ParseError err) {
@@ -48,14 +104,28 @@ public class Parser {
         return new Stmt.Var(name, initializer);
     }
 
-    private Stmt.Function funDeclaration(String kind) {
+    /* Parses a function or a method of className, skipping its body if skip is set. */
+    private Stmt.Function funDeclaration(String kind, boolean skip, Token className) {
         Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
         consume(LEFT_PAREN, "Expect opening paren '('");
         List<Token> parameters = parseParameters();
         consume(RIGHT_PAREN, "Expect closing paren ')'");
         consume(LEFT_BRACE, "Expect '{' before function body.");
-        List<Stmt> body = block();
-        return new Stmt.Function(name, parameters, body);
+        Stmt.Function function = new Stmt.Function(name, parameters);
+        if (!skip) {
+            function.body = block();
+            return function;
+        }
+        Token brace = previous();
+        new PreParser(this).block();
+        int end = previous().offset + 1;
+        function.lazy = new LazyBody(source, brace.offset, end, brace.line, className);
+        return function;
+    }
+
+    /* Whether the bodies declared here can be skipped, which those at the top level can. */
+    private boolean skipsBodies() {
+        return source != null && depth == 0;
     }
 
     List<Token> parseParameters() {
@@ -97,8 +167,10 @@ public class Parser {
         }
         consume(LEFT_BRACE, "Expect '{' before class body.");
         List<Stmt.Function> methods = new ArrayList<>();
+        // The methods of a subclass capture 'super' from the class, so are resolved with it.
+        boolean skip = skipsBodies() && superClass == null;
         while (!check(RIGHT_BRACE) && !EoF()) {
-            methods.add(funDeclaration("method"));
+            methods.add(funDeclaration("method", skip, name));
         }
         consume(RIGHT_BRACE, "Expect '}' after class body.");
         return new Stmt.Class(name, superClass, methods);
@@ -126,8 +198,13 @@ public class Parser {
 
     private List<Stmt> block() {
         List<Stmt> stmts = new ArrayList<>();
-        while (!(check(RIGHT_BRACE) || EoF())) stmts.add(declaration());
-        consume(RIGHT_BRACE, "Expect closing brace '}'");
+        depth++;
+        try {
+            while (!(check(RIGHT_BRACE) || EoF())) stmts.add(declaration());
+            consume(RIGHT_BRACE, "Expect closing brace '}'");
+        } finally {
+            depth--;
+        }
         return stmts;
     }
 
@@ -161,13 +238,8 @@ public class Parser {
         consume(RIGHT_PAREN, "Expect closing paren ')'");
         Stmt body = statement();
 
-        if (increment != null)
-            body = new Stmt.Block(Arrays.asList(body, new Stmt.Expression(increment)));
         if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body, name);
-        if (init != null) body = new Stmt.Block(Arrays.asList(init, body));
-
-        return body;
+        return new Stmt.For(init, condition, increment, body, name);
     }
 
     private Stmt expressionStatement() {
@@ -313,7 +385,7 @@ public class Parser {
         throw error(peek(), "Expect expression.");
     }
 
-    private boolean match(TokenType... types) {
+    boolean match(TokenType... types) {
         for (TokenType type : types) {
             if (check(type)) {
                 advance();
@@ -323,21 +395,24 @@ public class Parser {
         return false;
     }
 
-    private Token advance() {
-        if (!EoF()) current++;
+    Token advance() {
+        if (!EoF()) {
+            previous = current;
+            current = tokens.next();
+        }
         return previous();
     }
 
-    private Token previous() {
-        return tokens.get(current - 1);
+    Token previous() {
+        return previous;
     }
 
-    private boolean check(TokenType type) {
+    boolean check(TokenType type) {
         if (EoF()) return false;
         return peek().type == type;
     }
 
-    private void synchronize() {
+    void synchronize() {
         advance();
         while (!EoF()) {
             if (previous().type == SEMICOLON) return;
@@ -350,21 +425,22 @@ public class Parser {
         }
     }
 
-    private boolean EoF() {
+    boolean EoF() {
         return peek().type == EOF;
     }
 
-    private Token peek() {
-        return tokens.get(current);
+    Token peek() {
+        return current;
     }
 
-    private Token consume(TokenType type, String msg) {
+    Token consume(TokenType type, String msg) {
         if (check(type)) return advance();
         else throw error(peek(), msg);
     }
 
-    private static ParseError error(Token token, String msg) {
-        Jlox.error(token, msg);
+    ParseError error(Token token, String msg) {
+        errors++;
+        if (report) Jlox.error(token, msg);
         return new ParseError();
     }
 
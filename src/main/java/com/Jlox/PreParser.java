@@ -0,0 +1,192 @@
+package com.Jlox;
+
+import static com.Jlox.Jlox.MAX_ARITY;
+import static com.Jlox.TokenType.*;
+
+/*
+ * Checks the syntax of a function body that the Parser skips, building nothing, and finds the '}'
+ * that closes it, which ends the range the Parser records. It reads the tokens of the parser, and
+ * follows its grammar and its recovery from errors step by step, so that it reports the same
+ * errors at the same tokens.
+ *
+ * Expressions only tell whether they can be assigned to. Binary operators all have one level: the
+ * precedence of the operators changes the tree but not which inputs are valid.
+ */
+final class PreParser {
+    private final Parser parser;
+
+    PreParser(Parser parser) {
+        this.parser = parser;
+    }
+
+    /* Checks the rest of a block, whose '{' the parser just consumed. */
+    void block() {
+        while (!(parser.check(RIGHT_BRACE) || parser.EoF())) declaration();
+        parser.consume(RIGHT_BRACE, "Expect closing brace '}'");
+    }
+
+    private void declaration() {
+        try {
+            if (parser.match(VAR)) varDeclaration();
+            else if (parser.match(FUN)) funDeclaration("function");
+            else if (parser.match(CLASS)) classDeclaration();
+            else statement();
+        } catch (Parser.ParseError err) {
+            parser.synchronize();
+        }
+    }
+
+    private void varDeclaration() {
+        parser.consume(IDENTIFIER, "Expect variable name.");
+        if (parser.match(EQUAL)) expression();
+        parser.consume(SEMICOLON, "Expect ';' after variable declaration.");
+    }
+
+    private void funDeclaration(String kind) {
+        parser.consume(IDENTIFIER, "Expect " + kind + " name.");
+        parser.consume(LEFT_PAREN, "Expect opening paren '('");
+        parser.parseParameters();
+        parser.consume(RIGHT_PAREN, "Expect closing paren ')'");
+        parser.consume(LEFT_BRACE, "Expect '{' before function body.");
+        block();
+    }
+
+    private void classDeclaration() {
+        parser.consume(IDENTIFIER, "Expect class name");
+        if (parser.match(LESS)) parser.consume(IDENTIFIER, "Expect superclass name.");
+        parser.consume(LEFT_BRACE, "Expect '{' before class body.");
+        while (!parser.check(RIGHT_BRACE) && !parser.EoF()) funDeclaration("method");
+        parser.consume(RIGHT_BRACE, "Expect '}' after class body.");
+    }
+
+    private void statement() {
+        try {
+            if (parser.match(PRINT)) expressionStatement("Expect ';' after value.");
+            else if (parser.match(LEFT_BRACE)) block();
+            else if (parser.match(IF)) ifStmt();
+            else if (parser.match(WHILE)) whileStmt();
+            else if (parser.match(FOR)) forStmt();
+            else if (parser.match(RETURN)) returnStmt();
+            else if (parser.match(BREAK)) breakStmt();
+            else expressionStatement("Expect ';' after expression.");
+        } catch (Parser.ParseError err) {
+            parser.synchronize();
+        }
+    }
+
+    private void breakStmt() {
+        if (!parser.check(SEMICOLON)) parser.consume(IDENTIFIER, "Expect loop name");
+        parser.consume(SEMICOLON, "Expect ';' after break.");
+    }
+
+    private void returnStmt() {
+        if (!parser.check(SEMICOLON)) expression();
+        parser.consume(SEMICOLON, "Expect ';' after return value.");
+    }
+
+    private void ifStmt() {
+        condition();
+        statement();
+        if (parser.match(ELSE)) statement();
+    }
+
+    private void whileStmt() {
+        if (!parser.check(LEFT_PAREN)) parser.consume(IDENTIFIER, "Expect while loop name.");
+        condition();
+        statement();
+    }
+
+    private void condition() {
+        parser.consume(LEFT_PAREN, "Expect opening paren '('");
+        expression();
+        parser.consume(RIGHT_PAREN, "Expect closing paren ')'");
+    }
+
+    private void forStmt() {
+        if (!parser.check(LEFT_PAREN)) parser.consume(IDENTIFIER, "Expect while loop name.");
+        parser.consume(LEFT_PAREN, "Expect opening paren '('");
+        if (parser.match(VAR)) varDeclaration();
+        else if (!parser.match(SEMICOLON)) expressionStatement("Expect ';' after expression.");
+        if (!parser.check(SEMICOLON)) expression();
+        parser.consume(SEMICOLON, "Expect ';' after loop condition.");
+        if (!parser.check(RIGHT_PAREN)) expression();
+        parser.consume(RIGHT_PAREN, "Expect closing paren ')'");
+        statement();
+    }
+
+    private void expressionStatement(String msg) {
+        expression();
+        parser.consume(SEMICOLON, msg);
+    }
+
+    /* Returns whether the expression can be assigned to, being a variable or a property. */
+    private boolean expression() {
+        boolean target = binary();
+        if (parser.match(EQUAL)) {
+            Token equals = parser.previous();
+            expression();
+            if (!target) parser.error(equals, "Invalid assignment target.");
+            return false;
+        }
+        return target;
+    }
+
+    private boolean binary() {
+        boolean target = unary();
+        while (parser.match(
+                OR, AND, BANG_EQUAL, EQUAL_EQUAL, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL, MINUS,
+                PLUS, SLASH, STAR)) {
+            unary();
+            target = false;
+        }
+        return target;
+    }
+
+    private boolean unary() {
+        if (!parser.match(BANG, MINUS)) return call();
+        unary();
+        return false;
+    }
+
+    private boolean call() {
+        boolean target = primary();
+        while (true) {
+            if (parser.match(LEFT_PAREN)) {
+                arguments();
+                parser.consume(RIGHT_PAREN, "Expect ')' after arguments.");
+                target = false;
+            } else if (parser.match(DOT)) {
+                parser.consume(IDENTIFIER, "Expect property name after '.'.");
+                target = true;
+            } else return target;
+        }
+    }
+
+    private void arguments() {
+        int count = 0;
+        while (!parser.check(RIGHT_PAREN)) {
+            if (count == MAX_ARITY)
+                parser.error(parser.peek(), "Can't have more than " + MAX_ARITY + " arguments.");
+            expression();
+            count++;
+            if (parser.check(RIGHT_PAREN)) break;
+            parser.consume(COMMA, "Missing comma between arguments.");
+        }
+    }
+
+    private boolean primary() {
+        if (parser.match(FALSE, TRUE, NIL, FLOAT, INTEGER, STRING, THIS)) return false;
+        if (parser.match(IDENTIFIER)) return true;
+        if (parser.match(LEFT_PAREN)) {
+            expression();
+            parser.consume(RIGHT_PAREN, "Expect ')' after expression.");
+            return false;
+        }
+        if (parser.match(SUPER)) {
+            parser.consume(DOT, "Expect '.' after 'super'.");
+            parser.consume(IDENTIFIER, "Expect superclass method name.");
+            return false;
+        }
+        throw parser.error(parser.peek(), "Expect expression.");
+    }
+}
@@ -0,0 +1,54 @@
+package com.Jlox;
+
+/*
+ * Monomorphic inline cache of an Expr.Get or Expr.Set, keyed on the shape of the instance. Since
+ * every class has its own shapes, a get that found a method rather than a field can be cached too.
+ * A set that adds a field caches the shape it moves the instance to.
+ */
+final class PropertySite {
+    private Shape shape;
+    private int slot;
+    private LoxMethod method;
+    private Shape next;
+
+    Object get(LoxInstance instance, Token name) {
+        LoxMethod function = method(instance, name);
+        return function == null ? instance.fields[slot] : function.bind(instance);
+    }
+
+    /* Returns the method that the property names, or null when it is a field. */
+    LoxMethod method(LoxInstance instance, Token name) {
+        if (instance.shape != shape) {
+            Shape current = instance.shape;
+            int found = current.slot(name.lexeme);
+            LoxMethod function = null;
+            if (found < 0) {
+                function = instance.loxClass.findMethod(name.lexeme);
+                if (function == null)
+                    throw new RunTimeEvalError(
+                            name, "Undefined property '" + name.lexeme + "'.");
+            }
+            this.shape = current;
+            this.slot = found;
+            this.method = function;
+        }
+        return method;
+    }
+
+    /* Reads the field found by the last call to method(). */
+    Object field(LoxInstance instance) {
+        return instance.fields[slot];
+    }
+
+    void set(LoxInstance instance, Token name, Object value) {
+        if (instance.shape != shape) {
+            Shape current = instance.shape;
+            int found = current.slot(name.lexeme);
+            this.shape = current;
+            this.slot = found < 0 ? current.size() : found;
+            this.next = found < 0 ? current.with(name.lexeme) : null;
+        }
+        if (next != null) instance.addField(next);
+        instance.fields[slot] = value;
+    }
+}
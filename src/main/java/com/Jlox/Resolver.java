@@ -1,15 +1,19 @@
 package com.Jlox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
-    private final Interpreter interpreter;
-    private final Stack<Map<String, VARSTATE>> scopes = new Stack<>();
+    private final Stack<Scope> scopes = new Stack<>();
+    /* The declarations that a function nested in the one declaring them uses, by their key. */
+    private Set<Object> captured = Set.of();
     private FunctionType currentFunction = FunctionType.NONE;
-    private LoopType currentLoop = LoopType.NONE;
+    /* Loops enclosing the code being resolved, innermost last, within the current function. */
+    private Stack<Stmt> loops = new Stack<>();
     private ClassType currentClass = ClassType.NONE;
 
     private enum VARSTATE {
@@ -18,6 +22,43 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
         USED
     }
 
+    /* A local, the slot of the frame where it lives and whether it lives in a Cell there. */
+    private static class Variable {
+        VARSTATE state;
+        final int slot;
+        final boolean captured;
+        int assignments = 0;
+
+        Variable(VARSTATE state, int slot, boolean captured) {
+            this.state = state;
+            this.slot = slot;
+            this.captured = captured;
+        }
+    }
+
+    private record Upvalue(int index, boolean isLocal) {}
+
+    /*
+     * The Environment of a function call, or of a block at the top level, whose slots the scopes
+     * inside it take in turn. A function keeps the Cells it captures from the frames around it as
+     * upvalues, each either a slot of the frame enclosing it or an upvalue of that frame.
+     */
+    private static class Frame {
+        final Frame enclosing;
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int next = 0;
+        int size = 0;
+
+        Frame(Frame enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
+
+    private record Scope(Map<String, Variable> names, Frame frame, boolean ownsFrame, int start) {}
+
+    /* Where the code of the current frame finds a variable, as one of the Environment accesses. */
+    private record Access(int access, int slot, Variable variable) {}
+
     private static enum FunctionType {
         NONE,
         FUNCTION,
@@ -25,22 +66,14 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
         INIT
     }
 
-    private static enum LoopType {
-        NONE,
-        LOOP
-    }
-
     private static enum ClassType {
         NONE,
         CLASS,
         SUBCLASS
     }
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
-    }
-
     void resolve(List<Stmt> stmts) {
+        if (scopes.isEmpty()) captured = CaptureAnalyzer.analyze(stmts);
         for (Stmt stmt : stmts) resolve(stmt);
     }
 
@@ -85,7 +118,9 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == VARSTATE.DECLARED) {
+        Variable variable =
+                scopes.isEmpty() ? null : scopes.peek().names().get(expr.name.lexeme);
+        if (variable != null && variable.state == VARSTATE.DECLARED) {
             Jlox.error(expr.name, "Can't read local variable in its own initializer.");
         }
         resolveLocal(expr, expr.name);
@@ -128,7 +163,8 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
+        stmt.captured = captured.contains(stmt.name);
         if (stmt.initializer != null) resolve(stmt.initializer);
         define(stmt.name);
         return null;
@@ -136,9 +172,9 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        beginScope();
+        stmt.hasFrame = beginBlockScope();
         resolve(stmt.stmts);
-        finishScope();
+        stmt.frameSize = finishScope();
         return null;
     }
 
@@ -152,17 +188,61 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
-        LoopType previousLoop = currentLoop;
-        currentLoop = LoopType.LOOP;
+        loops.push(stmt);
         resolve(stmt.condition);
         resolve(stmt.body);
-        currentLoop = previousLoop;
+        loops.pop();
         return null;
     }
 
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        stmt.hasFrame = beginBlockScope();
+        loops.push(stmt);
+        if (stmt.initializer != null) resolve(stmt.initializer);
+        resolve(stmt.condition);
+        resolve(stmt.body);
+        if (stmt.increment != null) resolve(stmt.increment);
+        loops.pop();
+        stmt.counted = isCounted(stmt);
+        stmt.frameSize = finishScope();
+        return null;
+    }
+
+    /*
+     * Whether the loop has the form for (var i = a; i < n; i = i + k), with any comparison and an
+     * integer step k, and nothing else assigns i. Then i keeps counting by k for as long as it
+     * holds an integer, and the engines can run the increment and the comparison on an int.
+     */
+    private boolean isCounted(Stmt.For stmt) {
+        if (!(stmt.initializer instanceof Stmt.Var counter)
+                || !(stmt.condition instanceof Expr.Binary test)
+                || !(stmt.increment instanceof Expr.Assign increment)
+                || !(increment.value instanceof Expr.Binary next)
+                || !(next.right instanceof Expr.Literal literal)
+                || !(literal.value instanceof Integer step)) return false;
+        String name = counter.name.lexeme;
+        boolean compares =
+                switch (test.op.type) {
+                    case LESS, LESS_EQUAL, GREATER, GREATER_EQUAL -> true;
+                    default -> false;
+                };
+        if (!compares
+                || !(test.left instanceof Expr.Variable left && left.name.lexeme.equals(name))
+                || !increment.name.lexeme.equals(name)
+                || !(next.left instanceof Expr.Variable right && right.name.lexeme.equals(name)))
+            return false;
+        if (next.op.type == TokenType.PLUS) stmt.step = step;
+        else if (next.op.type == TokenType.MINUS) stmt.step = -step;
+        else return false;
+        Variable variable = scopes.peek().names().get(name);
+        return variable.assignments == 1 && !variable.captured;
+    }
+
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
+        stmt.captured = captured.contains(stmt.name);
         define(stmt.name);
         resolveFunction(stmt, FunctionType.FUNCTION);
         return null;
@@ -173,7 +253,8 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
 
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
+        stmt.captured = captured.contains(stmt.name);
         define(stmt.name);
 
         if (stmt.superClass != null) {
@@ -181,17 +262,15 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
             if (stmt.superClass.name.lexeme.equals(stmt.name.lexeme))
                 Jlox.error(stmt.superClass.name, "A class can't inherit from itself.");
             resolve(stmt.superClass);
-            beginScope();
-            scopes.peek().put("super", VARSTATE.DEFINED);
+            stmt.hasFrame = beginBlockScope();
+            // Only methods use 'super', so it always lives in a Cell.
+            stmt.superSlot = defineImplicit("super", true);
         }
-        beginScope();
-        scopes.peek().put("this", VARSTATE.DEFINED);
         for (Stmt.Function func : stmt.methods) {
             resolveFunction(
                     func,
                     func.name.lexeme.equals("init") ? FunctionType.INIT : FunctionType.METHOD);
         }
-        finishScope();
         if (stmt.superClass != null) finishScope();
         currentClass = enclosingClass;
         return null;
@@ -222,6 +301,11 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
             Jlox.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
         }
         resolveLocal(expr, expr.keyword);
+        Access receiver = lookUp("this");
+        if (receiver != null) {
+            expr.thisAccess = receiver.access();
+            expr.thisSlot = receiver.slot();
+        }
         return null;
     }
 
@@ -232,6 +316,7 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
         if (stmt.value != null) {
             if (currentFunction == FunctionType.INIT)
                 Jlox.error(stmt.keyword, "Can't return a value from an initializer.");
+            else if (stmt.value instanceof Expr.Call call) call.tail = true;
             resolve(stmt.value);
         }
         return null;
@@ -239,52 +324,182 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 
     @Override
     public Void visitBreakStmt(Stmt.Break stmt) {
-        if (currentLoop == LoopType.NONE)
+        if (loops.isEmpty()) {
             Jlox.error(stmt.keyword, "Can't break outside while- or for- loop.");
+            return null;
+        }
+        for (int i = loops.size() - 1; i >= 0; i--) {
+            Stmt loop = loops.get(i);
+            Token name =
+                    switch (loop) {
+                        case Stmt.While node -> node.name;
+                        case Stmt.For node -> node.name;
+                        default -> null;
+                    };
+            if (stmt.name == null || (name != null && name.lexeme.equals(stmt.name.lexeme))) {
+                stmt.loop = loop;
+                return null;
+            }
+        }
+        Jlox.error(stmt.name, "No enclosing loop named '" + stmt.name.lexeme + "'.");
         return null;
     }
 
+    /* Stores on the node where its local lives. Globals keep the GLOBAL access. */
     private void resolveLocal(Expr expr, Token name) {
-        for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+        Access local = lookUp(name.lexeme);
+        if (local == null) return;
+        switch (expr) {
+            case Expr.Variable node -> {
+                node.access = local.access();
+                node.slot = local.slot();
             }
+            case Expr.Assign node -> {
+                node.access = local.access();
+                node.slot = local.slot();
+                local.variable().assignments++;
+            }
+            case Expr.This node -> {
+                node.access = local.access();
+                node.slot = local.slot();
+            }
+            case Expr.Super node -> {
+                node.access = local.access();
+                node.slot = local.slot();
+            }
+            default -> throw new IllegalArgumentException("Not a variable: " + expr);
         }
     }
 
+    /* Returns how the current frame reaches the local, or null for a global. */
+    private Access lookUp(String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Scope scope = scopes.get(i);
+            Variable variable = scope.names().get(name);
+            if (variable == null) continue;
+            Frame frame = scopes.peek().frame();
+            if (scope.frame() == frame)
+                return new Access(
+                        variable.captured ? Environment.CELL : Environment.LOCAL,
+                        variable.slot,
+                        variable);
+            int upvalue = upvalue(frame, scope.frame(), variable.slot);
+            return new Access(Environment.UPVALUE, upvalue, variable);
+        }
+        return null;
+    }
+
+    /* Returns the upvalue of frame for the slot of owner, adding it to every frame in between. */
+    private static int upvalue(Frame frame, Frame owner, int slot) {
+        Upvalue upvalue =
+                frame.enclosing == owner
+                        ? new Upvalue(slot, true)
+                        : new Upvalue(upvalue(frame.enclosing, owner, slot), false);
+        int existing = frame.upvalues.indexOf(upvalue);
+        if (existing != -1) return existing;
+        frame.upvalues.add(upvalue);
+        return frame.upvalues.size() - 1;
+    }
+
     private void resolveFunction(Stmt.Function stmt, FunctionType type) {
+        stmt.isMethod = type == FunctionType.METHOD || type == FunctionType.INIT;
+        if (stmt.body == null) {
+            // Skipped by the parser, and resolved on its first call. Declared at the top level, it
+            // captures nothing.
+            stmt.upvalueIndexes = new int[0];
+            stmt.upvalueIsLocal = new boolean[0];
+            return;
+        }
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        Stack<Stmt> enclosingLoops = loops;
+        loops = new Stack<>();
 
         beginScope();
+        // The receiver of a method takes the first slot of its frame, before the parameters.
+        List<Integer> cells = new ArrayList<>();
+        if (stmt.isMethod && captured.contains(stmt)) cells.add(defineImplicit("this", true));
+        else if (stmt.isMethod) defineImplicit("this", false);
         for (Token param : stmt.params) {
-            declare(param);
+            int slot = declare(param);
             define(param);
+            if (captured.contains(param)) cells.add(slot);
         }
         resolve(stmt.body);
-        finishScope();
+        stmt.cells = cells.stream().mapToInt(Integer::intValue).toArray();
+        List<Upvalue> upvalues = scopes.peek().frame().upvalues;
+        stmt.upvalueIndexes = new int[upvalues.size()];
+        stmt.upvalueIsLocal = new boolean[upvalues.size()];
+        for (int i = 0; i < upvalues.size(); i++) {
+            stmt.upvalueIndexes[i] = upvalues.get(i).index();
+            stmt.upvalueIsLocal[i] = upvalues.get(i).isLocal();
+        }
+        stmt.frameSize = finishScope();
         currentFunction = enclosingFunction;
+        loops = enclosingLoops;
     }
 
-    void declare(Token token) {
-        if (scopes.isEmpty()) return;
-        Map<String, VARSTATE> scope = scopes.peek();
-        if (scope.containsKey(token.lexeme))
+    /* Returns the slot of the new local, or -1 for a global. */
+    int declare(Token token) {
+        if (scopes.isEmpty()) return -1;
+        Map<String, Variable> names = scopes.peek().names();
+        Variable variable = names.get(token.lexeme);
+        if (variable != null) {
             Jlox.error(token, "Already a variable with this name in this scope.");
-        scope.put(token.lexeme, VARSTATE.DECLARED);
+            variable.state = VARSTATE.DECLARED;
+            return variable.slot;
+        }
+        int slot = nextSlot();
+        names.put(token.lexeme, new Variable(VARSTATE.DECLARED, slot, captured.contains(token)));
+        return slot;
     }
 
     void define(Token token) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(token.lexeme, VARSTATE.DEFINED);
+        scopes.peek().names().get(token.lexeme).state = VARSTATE.DEFINED;
     }
 
+    /* Declares a local that the code cannot name before it is defined, like 'this'. */
+    private int defineImplicit(String name, boolean captured) {
+        int slot = nextSlot();
+        scopes.peek().names().put(name, new Variable(VARSTATE.DEFINED, slot, captured));
+        return slot;
+    }
+
+    private int nextSlot() {
+        Frame frame = scopes.peek().frame();
+        frame.size = Math.max(frame.size, frame.next + 1);
+        return frame.next++;
+    }
+
+    /* Begins the scope of a function, which gets an Environment of its own. */
     void beginScope() {
-        scopes.push(new HashMap<>());
+        Frame enclosing = scopes.isEmpty() ? null : scopes.peek().frame();
+        scopes.push(new Scope(new HashMap<>(), new Frame(enclosing), true, 0));
     }
 
-    void finishScope() {
-        scopes.pop();
+    /*
+     * Begins a block scope, returning whether it needs an Environment of its own. Only those at
+     * the top level do, the others take their slots from the frame around them.
+     */
+    private boolean beginBlockScope() {
+        if (scopes.isEmpty()) {
+            beginScope();
+            return true;
+        }
+        Frame frame = scopes.peek().frame();
+        scopes.push(new Scope(new HashMap<>(), frame, false, frame.next));
+        return false;
+    }
+
+    /*
+     * Returns the number of slots that the Environment of the scope needs. The slots of a scope
+     * sharing the enclosing frame are free again for the scopes after it: a closure keeps the
+     * Cell it captured, not the slot.
+     */
+    int finishScope() {
+        Scope scope = scopes.pop();
+        if (!scope.ownsFrame()) scope.frame().next = scope.start();
+        return scope.frame().size;
     }
 }
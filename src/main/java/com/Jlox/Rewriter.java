@@ -0,0 +1,168 @@
+package com.Jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Copies a syntax tree, rebuilding every statement and compound expression. Optimization passes
+ * extend it and override the nodes they change. A statement rewritten to null is dropped from the
+ * list that holds it.
+ */
+abstract class Rewriter implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    Expr rewrite(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    Stmt rewrite(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+
+    List<Stmt> rewrite(List<Stmt> stmts) {
+        List<Stmt> result = new ArrayList<>(stmts.size());
+        for (Stmt stmt : stmts) {
+            Stmt rewritten = rewrite(stmt);
+            if (rewritten != null) result.add(rewritten);
+        }
+        return result;
+    }
+
+    /* Returns a copy of the function with the body, keeping the source of one still unparsed. */
+    static Stmt.Function function(Stmt.Function stmt, List<Stmt> body) {
+        Stmt.Function function = new Stmt.Function(stmt.name, stmt.params);
+        function.body = body;
+        function.lazy = stmt.lazy;
+        return function;
+    }
+
+    /* Rewrites a statement that cannot be left out, like the body of a loop. */
+    Stmt rewriteBody(Stmt stmt) {
+        Stmt rewritten = rewrite(stmt);
+        return rewritten == null ? new Stmt.Block(new ArrayList<>()) : rewritten;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        return new Expr.Assign(expr.name, rewrite(expr.value));
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        return new Expr.Binary(rewrite(expr.left), expr.op, rewrite(expr.right));
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        return new Expr.Grouping(rewrite(expr.expr));
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        return new Expr.Unary(expr.op, rewrite(expr.right));
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        return new Expr.Logical(rewrite(expr.left), expr.op, rewrite(expr.right));
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        List<Expr> args = new ArrayList<>(expr.args.size());
+        for (Expr arg : expr.args) args.add(rewrite(arg));
+        return new Expr.Call(rewrite(expr.callee), expr.lastParen, args);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        return new Expr.Get(rewrite(expr.obj), expr.name);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        return new Expr.Set(rewrite(expr.obj), expr.name, rewrite(expr.value));
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        return new Stmt.Expression(rewrite(stmt.expr));
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        return new Stmt.Print(rewrite(stmt.expr));
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        return new Stmt.Var(stmt.name, rewrite(stmt.initializer));
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        return new Stmt.Block(rewrite(stmt.stmts));
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        return new Stmt.If(
+                rewrite(stmt.condition), rewriteBody(stmt.thenBranch), rewrite(stmt.elseBranch));
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        return new Stmt.While(rewrite(stmt.condition), rewriteBody(stmt.body), stmt.name);
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        return new Stmt.For(
+                rewrite(stmt.initializer),
+                rewrite(stmt.condition),
+                rewrite(stmt.increment),
+                rewriteBody(stmt.body),
+                stmt.name);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        return function(stmt, stmt.body == null ? null : rewrite(stmt.body));
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        return new Stmt.Return(stmt.keyword, rewrite(stmt.value));
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt) {
+        return new Stmt.Break(stmt.keyword, stmt.name);
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+        for (Stmt.Function method : stmt.methods) methods.add((Stmt.Function) rewrite(method));
+        return new Stmt.Class(stmt.name, stmt.superClass, methods);
+    }
+}
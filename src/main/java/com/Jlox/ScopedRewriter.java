@@ -0,0 +1,79 @@
+package com.Jlox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+/*
+ * A Rewriter that keeps the locals in scope like the Resolver does, so that a pass can tell which
+ * declaration a name refers to. A local maps to the statement that declares it: a Stmt.Var, or the
+ * Stmt.Function or Stmt.Class for functions, parameters and classes.
+ */
+abstract class ScopedRewriter extends Rewriter {
+    private final Stack<Map<String, Stmt>> scopes = new Stack<>();
+    /* Number of function bodies around the code being rewritten. */
+    int functionDepth = 0;
+
+    /* Returns the declaration of the local, or null for a global. */
+    Stmt lookUp(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Stmt declaration = scopes.get(i).get(name.lexeme);
+            if (declaration != null) return declaration;
+        }
+        return null;
+    }
+
+    private void declare(Token name, Stmt declaration) {
+        if (!scopes.isEmpty()) scopes.peek().put(name.lexeme, declaration);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = rewrite(stmt.initializer);
+        declare(stmt.name, stmt);
+        return new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        scopes.push(new HashMap<>());
+        List<Stmt> stmts = rewrite(stmt.stmts);
+        scopes.pop();
+        return new Stmt.Block(stmts);
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        scopes.push(new HashMap<>());
+        Stmt loop = super.visitForStmt(stmt);
+        scopes.pop();
+        return loop;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.name, stmt);
+        return function(stmt);
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        declare(stmt.name, stmt);
+        List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+        for (Stmt.Function method : stmt.methods) methods.add(function(method));
+        return new Stmt.Class(stmt.name, stmt.superClass, methods);
+    }
+
+    /* Rewrites a function or a method, whose name is not a local, in a scope of its own. */
+    Stmt.Function function(Stmt.Function stmt) {
+        scopes.push(new HashMap<>());
+        functionDepth++;
+        for (Token param : stmt.params) declare(param, stmt);
+        List<Stmt> body = stmt.body == null ? null : rewrite(stmt.body);
+        functionDepth--;
+        scopes.pop();
+        return function(stmt, body);
+    }
+}
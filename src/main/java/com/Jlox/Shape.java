@@ -0,0 +1,39 @@
+package com.Jlox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Layout of the fields of an instance, which keeps their values in an array. Instances of a class
+ * start from the class's empty shape, and adding a field moves them along a transition that is
+ * shared with every other instance adding the same fields in the same order. So instances built
+ * by the same initializer end up with the same shape, which the PropertySites cache.
+ */
+final class Shape {
+    private final Map<String, Integer> slots;
+    private final Map<String, Shape> transitions = new HashMap<>();
+
+    Shape() {
+        this.slots = Map.of();
+    }
+
+    private Shape(Shape parent, String name) {
+        this.slots = new HashMap<>(parent.slots);
+        this.slots.put(name, parent.size());
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    /* Returns the slot of the field, or -1 if instances of this shape don't have it. */
+    int slot(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    /* Returns the shape with the given field added after the ones of this shape. */
+    Shape with(String name) {
+        return transitions.computeIfAbsent(name, key -> new Shape(this, key));
+    }
+}
@@ -0,0 +1,80 @@
+package com.Jlox;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+ * Runs a LoxScanner on a thread of its own, so that scanning a large input overlaps with parsing
+ * it. Tokens are handed over in batches through a bounded queue, which caps how far the scanner
+ * can run ahead. The scanner reports its errors as it finds them, so they may come out between
+ * those of the parser.
+ */
+final class ThreadedScanner implements TokenStream {
+    private static final int BATCH_SIZE = 1024;
+    private static final int QUEUED_BATCHES = 16;
+
+    private final BlockingQueue<Token[]> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+    /* Set by the scanner thread before it queues its last batch, if it fails. */
+    private volatile RuntimeException failure;
+    private Token[] batch = new Token[0];
+    private int next = 0;
+    private Token eof;
+
+    ThreadedScanner(LoxScanner scanner) {
+        Thread thread = new Thread(() -> scan(scanner), "lox-scanner");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public Token next() {
+        if (eof != null) return eof;
+        if (next == batch.length) {
+            batch = take();
+            next = 0;
+            if (failure != null) throw failure;
+        }
+        Token token = batch[next++];
+        if (token.type == TokenType.EOF) eof = token;
+        return token;
+    }
+
+    /* The last batch ends with the EOF token, and may have room left after it. */
+    private void scan(LoxScanner scanner) {
+        try {
+            Token[] batch = new Token[BATCH_SIZE];
+            int size = 0;
+            while (true) {
+                Token token = scanner.next();
+                batch[size++] = token;
+                if (token.type == TokenType.EOF) break;
+                if (size == BATCH_SIZE) {
+                    put(batch);
+                    batch = new Token[BATCH_SIZE];
+                    size = 0;
+                }
+            }
+            put(batch);
+        } catch (RuntimeException err) {
+            failure = err;
+            put(new Token[1]);
+        }
+    }
+
+    private void put(Token[] batch) {
+        try {
+            queue.put(batch);
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Token[] take() {
+        try {
+            return queue.take();
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for tokens.", err);
+        }
+    }
+}
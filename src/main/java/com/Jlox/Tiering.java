@@ -0,0 +1,82 @@
+package com.Jlox;
+
+import com.Jlox.jvm.JvmCompiler;
+
+import java.lang.invoke.MethodHandles;
+import java.util.List;
+
+/*
+ * Second tier of the tree-walker. Every function counts its calls and the loop iterations run in
+ * its body, and once one of them crosses its threshold the function is compiled to JVM bytecode
+ * and loaded as a hidden class. There is no on-stack replacement: a function that got hot in a
+ * loop switches to the compiled code on its next call.
+ */
+final class Tiering {
+    static int callThreshold = 1000;
+    static int loopThreshold = 10000;
+    static boolean trace = false;
+
+    private static final String HOT_CLASS = "com/Jlox/Tiering$Hot";
+
+    private Tiering() {}
+
+    /* Implemented by the classes that JvmCompiler.compileHot generates. */
+    interface HotFunction {
+        Object call(
+                Interpreter interpreter,
+                LoxInstance receiver,
+                Cell[] upvalues,
+                List<Object> args);
+    }
+
+    /* Counters of one function declaration, shared by all its closures and bound methods. */
+    static final class Profile {
+        private final Stmt.Function declaration;
+        private final boolean isInitializer;
+        private int calls = 0;
+        int backEdges = 0;
+        private boolean done = false;
+        private HotFunction compiled;
+
+        Profile(Stmt.Function declaration, boolean isInitializer) {
+            this.declaration = declaration;
+            this.isInitializer = isInitializer;
+        }
+
+        /* Counts a call and returns the compiled function, if there is one by now. */
+        HotFunction hot() {
+            if (done) return compiled;
+            if (++calls >= callThreshold || backEdges >= loopThreshold) compile();
+            return compiled;
+        }
+
+        private void compile() {
+            done = true;
+            String name = declaration.name.lexeme;
+            long start = System.nanoTime();
+            byte[] bytes = JvmCompiler.compileHot(declaration, isInitializer, HOT_CLASS);
+            if (bytes == null) {
+                if (trace) System.err.println("[tier] cannot compile " + name);
+                return;
+            }
+            try {
+                compiled =
+                        (HotFunction)
+                                MethodHandles.lookup()
+                                        .defineHiddenClass(bytes, true)
+                                        .lookupClass()
+                                        .getDeclaredConstructor()
+                                        .newInstance();
+            } catch (ReflectiveOperationException | LinkageError err) {
+                if (trace) System.err.println("[tier] cannot load " + name + ": " + err);
+                return;
+            }
+            if (trace) {
+                double millis = (System.nanoTime() - start) / 1e6;
+                System.err.printf(
+                        "[tier] compiled %s after %d calls and %d loop iterations in %.2f ms%n",
+                        name, calls, backEdges, millis);
+            }
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package com.Jlox;
+
+/* Source of the tokens of an input, pulled one at a time. Once at the end, it keeps giving EOF. */
+public interface TokenStream {
+    Token next();
+}
@@ -0,0 +1,16 @@
+package com.Jlox.closure;
+
+final class BoundMethod {
+    final Object receiver;
+    final ClosureFunction method;
+
+    BoundMethod(Object receiver, ClosureFunction method) {
+        this.receiver = receiver;
+        this.method = method;
+    }
+
+    @Override
+    public String toString() {
+        return method.toString();
+    }
+}
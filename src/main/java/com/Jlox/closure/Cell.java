@@ -0,0 +1,10 @@
+package com.Jlox.closure;
+
+/* Heap storage for a local that is captured by a closure. */
+final class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,33 @@
+package com.Jlox.closure;
+
+import java.util.HashMap;
+import java.util.Map;
+
+final class ClosureClass {
+    final String name;
+    // Own methods plus the inherited ones, so that lookups never walk the superclass chain.
+    private final Map<String, ClosureFunction> methods = new HashMap<>();
+    ClosureFunction initializer;
+
+    ClosureClass(String name, ClosureClass superClass) {
+        this.name = name;
+        if (superClass != null) {
+            methods.putAll(superClass.methods);
+            initializer = superClass.initializer;
+        }
+    }
+
+    void addMethod(String name, ClosureFunction method) {
+        methods.put(name, method);
+        if (name.equals("init")) initializer = method;
+    }
+
+    ClosureFunction findMethod(String name) {
+        return methods.get(name);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
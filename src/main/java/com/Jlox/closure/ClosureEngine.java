@@ -0,0 +1,47 @@
+package com.Jlox.closure;
+
+import com.Jlox.Expr;
+import com.Jlox.Jlox;
+import com.Jlox.NativeFunctions.Clock;
+import com.Jlox.RunTimeEvalError;
+import com.Jlox.Stmt;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Runs programs compiled by the NodeCompiler into trees of pre-linked lambdas. Globals outlive a
+ * single run so that the REPL keeps its definitions.
+ */
+public final class ClosureEngine {
+    private final Map<String, Global> globals = new HashMap<>();
+
+    public ClosureEngine() {
+        global("clock").define(new Clock());
+    }
+
+    Global global(String name) {
+        return globals.computeIfAbsent(name, Global::new);
+    }
+
+    public void interpret(List<Stmt> stmts) {
+        FunctionPrototype script = NodeCompiler.compileScript(this, stmts);
+        if (script != null) run(script);
+    }
+
+    public void interpret(Expr expr) {
+        FunctionPrototype script = NodeCompiler.compileExpression(this, expr);
+        if (script != null) run(script);
+    }
+
+    private void run(FunctionPrototype script) {
+        try {
+            new ClosureFunction(script, new Cell[0]).invoke(null, new Object[script.frameSize]);
+        } catch (RunTimeEvalError err) {
+            Jlox.runTimeError(err);
+        } catch (StackOverflowError err) {
+            Jlox.runTimeError(new RunTimeEvalError(null, "Stack overflow."));
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.Jlox.closure;
+
+final class ClosureFunction {
+    final FunctionPrototype prototype;
+    final Cell[] upvalues;
+
+    ClosureFunction(FunctionPrototype prototype, Cell[] upvalues) {
+        this.prototype = prototype;
+        this.upvalues = upvalues;
+    }
+
+    /* Runs the body on a frame whose argument slots have already been filled by the caller. */
+    Object invoke(Object receiver, Object[] slots) {
+        slots[0] = receiver;
+        for (int slot : prototype.boxedSlots) slots[slot] = new Cell(slots[slot]);
+        Frame frame = new Frame(slots, upvalues);
+        int completion = prototype.body.exec(frame);
+        if (prototype.isInitializer) return receiver;
+        return completion == StmtNode.RETURN ? frame.returnValue : null;
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + prototype.name + ">";
+    }
+}
@@ -0,0 +1,18 @@
+package com.Jlox.closure;
+
+import java.util.HashMap;
+import java.util.Map;
+
+final class ClosureInstance {
+    final ClosureClass klass;
+    final Map<String, Object> fields = new HashMap<>();
+
+    ClosureInstance(ClosureClass klass) {
+        this.klass = klass;
+    }
+
+    @Override
+    public String toString() {
+        return klass.name + " instance.";
+    }
+}
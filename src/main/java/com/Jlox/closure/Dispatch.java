@@ -0,0 +1,106 @@
+package com.Jlox.closure;
+
+import com.Jlox.LoxCallable;
+import com.Jlox.RunTimeEvalError;
+import com.Jlox.Token;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* Calls and property accesses of compiled code. The checks happen in the Interpreter's order. */
+final class Dispatch {
+    private Dispatch() {}
+
+    static Object call(Object callee, ExprNode[] args, Frame frame, Token paren) {
+        switch (callee) {
+            case ClosureFunction function -> {
+                checkArity(function.prototype.arity, args.length, paren);
+                return function.invoke(null, evalArgs(function.prototype, args, frame));
+            }
+            case BoundMethod bound -> {
+                FunctionPrototype prototype = bound.method.prototype;
+                checkArity(prototype.arity, args.length, paren);
+                return bound.method.invoke(bound.receiver, evalArgs(prototype, args, frame));
+            }
+            case ClosureClass klass -> {
+                ClosureInstance instance = new ClosureInstance(klass);
+                ClosureFunction init = klass.initializer;
+                if (init == null) {
+                    checkArity(0, args.length, paren);
+                } else {
+                    checkArity(init.prototype.arity, args.length, paren);
+                    init.invoke(instance, evalArgs(init.prototype, args, frame));
+                }
+                return instance;
+            }
+            case LoxCallable function -> {
+                checkArity(function.arity(), args.length, paren);
+                List<Object> argVals = new ArrayList<>(args.length);
+                for (ExprNode arg : args) argVals.add(arg.eval(frame));
+                return function.call(null, argVals);
+            }
+            case null, default ->
+                    throw new RunTimeEvalError(paren, "Can only call functions and classes.");
+        }
+    }
+
+    /* obj.name(args) without creating a bound method. */
+    static Object invoke(Object obj, Token name, ExprNode[] args, Frame frame, Token paren) {
+        if (!(obj instanceof ClosureInstance instance))
+            throw new RunTimeEvalError(name, "Only instances have properties.");
+        Object field = instance.fields.get(name.lexeme);
+        if (field != null || instance.fields.containsKey(name.lexeme))
+            return call(field, args, frame, paren);
+        return invokeMethod(instance, instance.klass, name, args, frame, paren);
+    }
+
+    static Object invokeMethod(
+            Object receiver,
+            ClosureClass klass,
+            Token name,
+            ExprNode[] args,
+            Frame frame,
+            Token paren) {
+        ClosureFunction method = klass.findMethod(name.lexeme);
+        if (method == null)
+            throw new RunTimeEvalError(name, "Undefined property '" + name.lexeme + "'.");
+        checkArity(method.prototype.arity, args.length, paren);
+        return method.invoke(receiver, evalArgs(method.prototype, args, frame));
+    }
+
+    static Object getProperty(Object obj, Token name) {
+        if (!(obj instanceof ClosureInstance instance))
+            throw new RunTimeEvalError(name, "Only instances have properties.");
+        Object field = instance.fields.get(name.lexeme);
+        if (field != null || instance.fields.containsKey(name.lexeme)) return field;
+        return bindMethod(instance, instance.klass, name);
+    }
+
+    static Object setProperty(Object obj, Token name, ExprNode value, Frame frame) {
+        if (!(obj instanceof ClosureInstance instance))
+            throw new RunTimeEvalError(name, "Only instances have fields.");
+        Object val = value.eval(frame);
+        instance.fields.put(name.lexeme, val);
+        return val;
+    }
+
+    static BoundMethod bindMethod(Object receiver, ClosureClass klass, Token name) {
+        ClosureFunction method = klass.findMethod(name.lexeme);
+        if (method == null)
+            throw new RunTimeEvalError(name, "Undefined property '" + name.lexeme + "'.");
+        return new BoundMethod(receiver, method);
+    }
+
+    /* Evaluates the arguments straight into the slots of the callee's frame. */
+    private static Object[] evalArgs(FunctionPrototype prototype, ExprNode[] args, Frame frame) {
+        Object[] slots = new Object[prototype.frameSize];
+        for (int i = 0; i < args.length; i++) slots[i + 1] = args[i].eval(frame);
+        return slots;
+    }
+
+    private static void checkArity(int arity, int argCount, Token paren) {
+        if (arity != argCount)
+            throw new RunTimeEvalError(
+                    paren, "Expected " + arity + " arguments but got " + argCount + ".");
+    }
+}
@@ -0,0 +1,6 @@
+package com.Jlox.closure;
+
+@FunctionalInterface
+interface ExprNode {
+    Object eval(Frame frame);
+}
@@ -0,0 +1,14 @@
+package com.Jlox.closure;
+
+/* Activation record of a compiled function. */
+final class Frame {
+    final Object[] slots;
+    final Cell[] upvalues;
+    Object returnValue;
+    int breakTarget;
+
+    Frame(Object[] slots, Cell[] upvalues) {
+        this.slots = slots;
+        this.upvalues = upvalues;
+    }
+}
@@ -0,0 +1,33 @@
+package com.Jlox.closure;
+
+/* Compiled form of a function declaration, shared by all the closures created from it. */
+final class FunctionPrototype {
+    final String name;
+    final int arity;
+    final int frameSize;
+    final StmtNode body;
+    final int[] upvalueIndexes;
+    final boolean[] upvalueIsLocal;
+    // Parameter slots, and the receiver slot, that are captured and so need boxing in a Cell.
+    final int[] boxedSlots;
+    final boolean isInitializer;
+
+    FunctionPrototype(
+            String name,
+            int arity,
+            int frameSize,
+            StmtNode body,
+            int[] upvalueIndexes,
+            boolean[] upvalueIsLocal,
+            int[] boxedSlots,
+            boolean isInitializer) {
+        this.name = name;
+        this.arity = arity;
+        this.frameSize = frameSize;
+        this.body = body;
+        this.upvalueIndexes = upvalueIndexes;
+        this.upvalueIsLocal = upvalueIsLocal;
+        this.boxedSlots = boxedSlots;
+        this.isInitializer = isInitializer;
+    }
+}
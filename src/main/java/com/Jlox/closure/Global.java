@@ -0,0 +1,30 @@
+package com.Jlox.closure;
+
+import com.Jlox.RunTimeEvalError;
+import com.Jlox.Token;
+
+/* A global variable. Compiled code links to it once, even before the script defines it. */
+final class Global {
+    final String name;
+    Object value;
+    boolean defined = false;
+
+    Global(String name) {
+        this.name = name;
+    }
+
+    Object get(Token token) {
+        if (!defined) throw new RunTimeEvalError(token, "Undefined variable '" + name + "'.");
+        return value;
+    }
+
+    void assign(Token token, Object value) {
+        if (!defined) throw new RunTimeEvalError(token, "Undefined variable '" + name + "'.");
+        this.value = value;
+    }
+
+    void define(Object value) {
+        this.value = value;
+        this.defined = true;
+    }
+}
@@ -0,0 +1,641 @@
+package com.Jlox.closure;
+
+import static com.Jlox.closure.StmtNode.BREAK;
+import static com.Jlox.closure.StmtNode.NORMAL;
+import static com.Jlox.closure.StmtNode.RETURN;
+
+import com.Jlox.CaptureAnalyzer;
+import com.Jlox.Expr;
+import com.Jlox.Jlox;
+import com.Jlox.Operators;
+import com.Jlox.RunTimeEvalError;
+import com.Jlox.Stmt;
+import com.Jlox.Token;
+import com.Jlox.TokenType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/*
+ * Turns a resolved syntax tree into a tree of ExprNode and StmtNode lambdas. Every variable is
+ * linked here to a frame slot, a captured Cell or a Global, so running the nodes needs neither
+ * the visitors nor any name lookup.
+ */
+final class NodeCompiler implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+    private enum FunctionKind {
+        SCRIPT,
+        FUNCTION,
+        METHOD,
+        INITIALIZER
+    }
+
+    private record Local(String name, int depth, int slot, boolean captured) {}
+
+    private record Upvalue(int index, boolean isLocal) {}
+
+    private record Loop(Loop enclosing, Token name, int id) {}
+
+    private static class FunctionScope {
+        final FunctionScope enclosing;
+        final FunctionKind kind;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        int frameSize = 1;
+        Loop loop = null;
+
+        FunctionScope(FunctionScope enclosing, FunctionKind kind) {
+            this.enclosing = enclosing;
+            this.kind = kind;
+        }
+    }
+
+    private interface Setter {
+        void set(Frame frame, Object value);
+    }
+
+    private final ClosureEngine engine;
+    private final Set<Object> captured;
+    private FunctionScope current = new FunctionScope(null, FunctionKind.SCRIPT);
+    private int loopCount = 0;
+    private boolean hadError = false;
+
+    private NodeCompiler(ClosureEngine engine, Set<Object> captured) {
+        this.engine = engine;
+        this.captured = captured;
+        current.locals.add(new Local("", 0, 0, false));
+    }
+
+    static FunctionPrototype compileScript(ClosureEngine engine, List<Stmt> stmts) {
+        NodeCompiler compiler = new NodeCompiler(engine, CaptureAnalyzer.analyze(stmts));
+        StmtNode body = compiler.sequence(stmts);
+        return compiler.hadError ? null : compiler.script(body);
+    }
+
+    static FunctionPrototype compileExpression(ClosureEngine engine, Expr expr) {
+        NodeCompiler compiler = new NodeCompiler(engine, CaptureAnalyzer.analyze(expr));
+        ExprNode node = compiler.compile(expr);
+        StmtNode body =
+                frame -> {
+                    System.out.println(Operators.stringify(node.eval(frame)));
+                    return NORMAL;
+                };
+        return compiler.hadError ? null : compiler.script(body);
+    }
+
+    private FunctionPrototype script(StmtNode body) {
+        int[] none = new int[0];
+        return new FunctionPrototype(
+                "script", 0, current.frameSize, body, none, new boolean[0], none, false);
+    }
+
+    private ExprNode compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private StmtNode compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private StmtNode sequence(List<Stmt> stmts) {
+        StmtNode[] nodes = new StmtNode[stmts.size()];
+        for (int i = 0; i < nodes.length; i++) nodes[i] = compile(stmts.get(i));
+        return switch (nodes.length) {
+            case 0 -> frame -> NORMAL;
+            case 1 -> nodes[0];
+            case 2 -> {
+                StmtNode first = nodes[0];
+                StmtNode second = nodes[1];
+                yield frame -> {
+                    int completion = first.exec(frame);
+                    return completion != NORMAL ? completion : second.exec(frame);
+                };
+            }
+            default ->
+                    frame -> {
+                        for (StmtNode node : nodes) {
+                            int completion = node.exec(frame);
+                            if (completion != NORMAL) return completion;
+                        }
+                        return NORMAL;
+                    };
+        };
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+        ExprNode expr = compile(stmt.expr);
+        return frame -> {
+            expr.eval(frame);
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(Stmt.Print stmt) {
+        ExprNode expr = compile(stmt.expr);
+        return frame -> {
+            System.out.println(Operators.stringify(expr.eval(frame)));
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitVarStmt(Stmt.Var stmt) {
+        ExprNode init = stmt.initializer == null ? frame -> null : compile(stmt.initializer);
+        Setter define = declare(stmt.name, stmt.name);
+        return frame -> {
+            define.set(frame, init.eval(frame));
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        StmtNode body = sequence(stmt.stmts);
+        endScope();
+        return body;
+    }
+
+    @Override
+    public StmtNode visitIfStmt(Stmt.If stmt) {
+        ExprNode condition = compile(stmt.condition);
+        StmtNode thenBranch = compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            return frame ->
+                    Operators.truthy(condition.eval(frame)) ? thenBranch.exec(frame) : NORMAL;
+        }
+        StmtNode elseBranch = compile(stmt.elseBranch);
+        return frame ->
+                Operators.truthy(condition.eval(frame))
+                        ? thenBranch.exec(frame)
+                        : elseBranch.exec(frame);
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(Stmt.While stmt) {
+        ExprNode condition = compile(stmt.condition);
+        Loop loop = new Loop(current.loop, stmt.name, ++loopCount);
+        current.loop = loop;
+        StmtNode body = compile(stmt.body);
+        current.loop = loop.enclosing();
+        int id = loop.id();
+        return frame -> {
+            while (Operators.truthy(condition.eval(frame))) {
+                int completion = body.exec(frame);
+                if (completion != NORMAL) {
+                    if (completion == BREAK && frame.breakTarget == id) break;
+                    return completion;
+                }
+            }
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitForStmt(Stmt.For stmt) {
+        beginScope();
+        StmtNode init = stmt.initializer == null ? frame -> NORMAL : compile(stmt.initializer);
+        ExprNode condition = compile(stmt.condition);
+        Loop loop = new Loop(current.loop, stmt.name, ++loopCount);
+        current.loop = loop;
+        StmtNode body = compile(stmt.body);
+        current.loop = loop.enclosing();
+        ExprNode increment = stmt.increment == null ? frame -> null : compile(stmt.increment);
+        StmtNode counted = null;
+        int slot = -1;
+        if (stmt.counted) {
+            Local counter = resolveLocal(current, ((Stmt.Var) stmt.initializer).name.lexeme);
+            if (!counter.captured()) {
+                slot = counter.slot();
+                counted = countedLoop(stmt, slot, body, loop.id());
+            }
+        }
+        endScope();
+        int id = loop.id();
+        int counterSlot = slot;
+        StmtNode fastLoop = counted;
+        return frame -> {
+            init.exec(frame);
+            if (fastLoop != null && frame.slots[counterSlot] instanceof Integer)
+                return fastLoop.exec(frame);
+            while (Operators.truthy(condition.eval(frame))) {
+                int completion = body.exec(frame);
+                if (completion != NORMAL) {
+                    if (completion == BREAK && frame.breakTarget == id) break;
+                    return completion;
+                }
+                increment.eval(frame);
+            }
+            return NORMAL;
+        };
+    }
+
+    /*
+     * A loop that the Resolver found counted, run with the counter in an int. Its slot is written
+     * after every increment for the body to read.
+     */
+    private StmtNode countedLoop(Stmt.For stmt, int slot, StmtNode body, int id) {
+        Expr.Binary test = (Expr.Binary) stmt.condition;
+        ExprNode bound = compile(test.right);
+        Token op = test.op;
+        int step = stmt.step;
+        return frame -> {
+            int counter = (Integer) frame.slots[slot];
+            while (true) {
+                Object limit = bound.eval(frame);
+                boolean loop =
+                        limit instanceof Integer n
+                                ? switch (op.type) {
+                                    case LESS -> counter < n;
+                                    case LESS_EQUAL -> counter <= n;
+                                    case GREATER -> counter > n;
+                                    default -> counter >= n;
+                                }
+                                : switch (op.type) {
+                                    case LESS -> Operators.less(counter, limit, op);
+                                    case LESS_EQUAL -> Operators.lessEqual(counter, limit, op);
+                                    case GREATER -> Operators.greater(counter, limit, op);
+                                    default -> Operators.greaterEqual(counter, limit, op);
+                                };
+                if (!loop) return NORMAL;
+                int completion = body.exec(frame);
+                if (completion != NORMAL) {
+                    if (completion == BREAK && frame.breakTarget == id) return NORMAL;
+                    return completion;
+                }
+                counter += step;
+                frame.slots[slot] = counter;
+            }
+        };
+    }
+
+    @Override
+    public StmtNode visitBreakStmt(Stmt.Break stmt) {
+        Loop loop = current.loop;
+        if (stmt.name != null) {
+            while (loop != null
+                    && (loop.name() == null || !loop.name().lexeme.equals(stmt.name.lexeme)))
+                loop = loop.enclosing();
+        }
+        if (loop == null) {
+            hadError = true;
+            if (stmt.name == null)
+                Jlox.error(stmt.keyword, "Can't break outside while- or for- loop.");
+            else Jlox.error(stmt.name, "No enclosing loop named '" + stmt.name.lexeme + "'.");
+            return frame -> NORMAL;
+        }
+        int id = loop.id();
+        return frame -> {
+            frame.breakTarget = id;
+            return BREAK;
+        };
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(Stmt.Return stmt) {
+        // Initializers always return the receiver, ClosureFunction takes care of it.
+        if (stmt.value == null || current.kind == FunctionKind.INITIALIZER) {
+            return frame -> {
+                frame.returnValue = null;
+                return RETURN;
+            };
+        }
+        ExprNode value = compile(stmt.value);
+        return frame -> {
+            frame.returnValue = value.eval(frame);
+            return RETURN;
+        };
+    }
+
+    @Override
+    public StmtNode visitFunctionStmt(Stmt.Function stmt) {
+        // Declared before the body is compiled so that the function can refer to itself.
+        Setter define = declare(stmt.name, stmt.name);
+        Setter assign = assigner(stmt.name);
+        FunctionPrototype prototype = function(stmt, FunctionKind.FUNCTION);
+        return frame -> {
+            define.set(frame, null);
+            assign.set(frame, closure(prototype, frame));
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitClassStmt(Stmt.Class stmt) {
+        String name = stmt.name.lexeme;
+        Setter define = declare(stmt.name, stmt.name);
+        Setter assign = assigner(stmt.name);
+        ExprNode superClass = null;
+        Setter defineSuper = null;
+        if (stmt.superClass != null) {
+            superClass = compile(stmt.superClass);
+            beginScope();
+            defineSuper = declare("super", stmt, stmt.superClass.name);
+        }
+        List<FunctionPrototype> methods = new ArrayList<>();
+        for (Stmt.Function method : stmt.methods) {
+            boolean isInitializer = method.name.lexeme.equals("init");
+            methods.add(
+                    function(
+                            method,
+                            isInitializer ? FunctionKind.INITIALIZER : FunctionKind.METHOD));
+        }
+        if (stmt.superClass != null) endScope();
+
+        ExprNode superNode = superClass;
+        Setter superSetter = defineSuper;
+        Token superName = stmt.superClass == null ? null : stmt.superClass.name;
+        return frame -> {
+            define.set(frame, null);
+            ClosureClass parent = null;
+            if (superNode != null) {
+                if (!(superNode.eval(frame) instanceof ClosureClass klass))
+                    throw new RunTimeEvalError(
+                            superName, "Superclass must be a class.");
+                parent = klass;
+                superSetter.set(frame, parent);
+            }
+            ClosureClass klass = new ClosureClass(name, parent);
+            for (FunctionPrototype method : methods)
+                klass.addMethod(method.name, closure(method, frame));
+            assign.set(frame, klass);
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.Assign expr) {
+        ExprNode value = compile(expr.value);
+        Setter assign = assigner(expr.name);
+        return frame -> {
+            Object val = value.eval(frame);
+            assign.set(frame, val);
+            return val;
+        };
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Expr.Binary expr) {
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+        Token op = expr.op;
+        return switch (op.type) {
+            case PLUS -> frame -> Operators.add(left.eval(frame), right.eval(frame), op);
+            case MINUS -> frame -> Operators.subtract(left.eval(frame), right.eval(frame), op);
+            case STAR -> frame -> Operators.multiply(left.eval(frame), right.eval(frame), op);
+            case SLASH -> frame -> Operators.divide(left.eval(frame), right.eval(frame), op);
+            case GREATER -> frame -> Operators.greater(left.eval(frame), right.eval(frame), op);
+            case GREATER_EQUAL ->
+                    frame -> Operators.greaterEqual(left.eval(frame), right.eval(frame), op);
+            case LESS -> frame -> Operators.less(left.eval(frame), right.eval(frame), op);
+            case LESS_EQUAL ->
+                    frame -> Operators.lessEqual(left.eval(frame), right.eval(frame), op);
+            case EQUAL_EQUAL -> frame -> Objects.equals(left.eval(frame), right.eval(frame));
+            case BANG_EQUAL -> frame -> !Objects.equals(left.eval(frame), right.eval(frame));
+            default ->
+                    frame -> {
+                        throw new RunTimeEvalError(op, "Wrong binary operator.");
+                    };
+        };
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expr);
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return frame -> value;
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.Unary expr) {
+        ExprNode right = compile(expr.right);
+        Token op = expr.op;
+        return switch (op.type) {
+            case MINUS -> frame -> Operators.negate(right.eval(frame), op);
+            case BANG -> frame -> !Operators.truthy(right.eval(frame));
+            default ->
+                    frame -> {
+                        throw new RunTimeEvalError(op, "Not a unary operator.");
+                    };
+        };
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(Expr.Variable expr) {
+        return getter(expr.name.lexeme, expr.name);
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Expr.Logical expr) {
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+        if (expr.op.type == TokenType.OR) {
+            return frame -> {
+                Object val = left.eval(frame);
+                return Operators.truthy(val) ? val : right.eval(frame);
+            };
+        }
+        return frame -> {
+            Object val = left.eval(frame);
+            return Operators.truthy(val) ? right.eval(frame) : val;
+        };
+    }
+
+    @Override
+    public ExprNode visitCallExpr(Expr.Call expr) {
+        Token paren = expr.lastParen;
+        if (expr.callee instanceof Expr.Get get) {
+            ExprNode obj = compile(get.obj);
+            ExprNode[] args = compileArgs(expr.args);
+            Token name = get.name;
+            return frame -> Dispatch.invoke(obj.eval(frame), name, args, frame, paren);
+        }
+        if (expr.callee instanceof Expr.Super sup) {
+            ExprNode self = getter("this", sup.keyword);
+            ExprNode superClass = getter("super", sup.keyword);
+            ExprNode[] args = compileArgs(expr.args);
+            Token name = sup.method;
+            return frame -> {
+                ClosureClass klass = (ClosureClass) superClass.eval(frame);
+                return Dispatch.invokeMethod(self.eval(frame), klass, name, args, frame, paren);
+            };
+        }
+        ExprNode callee = compile(expr.callee);
+        ExprNode[] args = compileArgs(expr.args);
+        return frame -> Dispatch.call(callee.eval(frame), args, frame, paren);
+    }
+
+    private ExprNode[] compileArgs(List<Expr> args) {
+        ExprNode[] nodes = new ExprNode[args.size()];
+        for (int i = 0; i < nodes.length; i++) nodes[i] = compile(args.get(i));
+        return nodes;
+    }
+
+    @Override
+    public ExprNode visitGetExpr(Expr.Get expr) {
+        ExprNode obj = compile(expr.obj);
+        Token name = expr.name;
+        return frame -> Dispatch.getProperty(obj.eval(frame), name);
+    }
+
+    @Override
+    public ExprNode visitSetExpr(Expr.Set expr) {
+        ExprNode obj = compile(expr.obj);
+        ExprNode value = compile(expr.value);
+        Token name = expr.name;
+        return frame -> Dispatch.setProperty(obj.eval(frame), name, value, frame);
+    }
+
+    @Override
+    public ExprNode visitThisExpr(Expr.This expr) {
+        return getter("this", expr.keyword);
+    }
+
+    @Override
+    public ExprNode visitSuperExpr(Expr.Super expr) {
+        ExprNode self = getter("this", expr.keyword);
+        ExprNode superClass = getter("super", expr.keyword);
+        Token name = expr.method;
+        return frame -> {
+            ClosureClass klass = (ClosureClass) superClass.eval(frame);
+            return Dispatch.bindMethod(self.eval(frame), klass, name);
+        };
+    }
+
+    private FunctionPrototype function(Stmt.Function stmt, FunctionKind kind) {
+        FunctionScope scope = new FunctionScope(current, kind);
+        current = scope;
+        beginScope();
+        List<Integer> boxed = new ArrayList<>();
+        boolean isMethod = kind == FunctionKind.METHOD || kind == FunctionKind.INITIALIZER;
+        boolean boxReceiver = isMethod && captured.contains(stmt);
+        scope.locals.add(new Local(isMethod ? "this" : "", 0, 0, boxReceiver));
+        if (boxReceiver) boxed.add(0);
+        for (Token param : stmt.params) {
+            Local local = addLocal(param.lexeme, param);
+            if (local.captured()) boxed.add(local.slot());
+        }
+        StmtNode body = sequence(stmt.body);
+        current = scope.enclosing;
+
+        int[] upvalueIndexes = new int[scope.upvalues.size()];
+        boolean[] upvalueIsLocal = new boolean[scope.upvalues.size()];
+        for (int i = 0; i < upvalueIndexes.length; i++) {
+            upvalueIndexes[i] = scope.upvalues.get(i).index();
+            upvalueIsLocal[i] = scope.upvalues.get(i).isLocal();
+        }
+        return new FunctionPrototype(
+                stmt.name.lexeme,
+                stmt.params.size(),
+                scope.frameSize,
+                body,
+                upvalueIndexes,
+                upvalueIsLocal,
+                boxed.stream().mapToInt(Integer::intValue).toArray(),
+                kind == FunctionKind.INITIALIZER);
+    }
+
+    private static ClosureFunction closure(FunctionPrototype prototype, Frame frame) {
+        Cell[] upvalues = new Cell[prototype.upvalueIndexes.length];
+        for (int i = 0; i < upvalues.length; i++) {
+            int index = prototype.upvalueIndexes[i];
+            upvalues[i] =
+                    prototype.upvalueIsLocal[i]
+                            ? (Cell) frame.slots[index]
+                            : frame.upvalues[index];
+        }
+        return new ClosureFunction(prototype, upvalues);
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.getLast().depth() > current.scopeDepth)
+            locals.removeLast();
+    }
+
+    private Local addLocal(String name, Object key) {
+        Local local =
+                new Local(name, current.scopeDepth, current.locals.size(), captured.contains(key));
+        current.locals.add(local);
+        current.frameSize = Math.max(current.frameSize, current.locals.size());
+        return local;
+    }
+
+    /* Declares a new variable and returns the code storing its initial value. */
+    private Setter declare(Token name, Object key) {
+        return declare(name.lexeme, key, name);
+    }
+
+    private Setter declare(String name, Object key, Token where) {
+        if (current.scopeDepth == 0) {
+            Global global = engine.global(name);
+            return (frame, value) -> global.define(value);
+        }
+        Local local = addLocal(name, key);
+        int slot = local.slot();
+        if (local.captured()) return (frame, value) -> frame.slots[slot] = new Cell(value);
+        return (frame, value) -> frame.slots[slot] = value;
+    }
+
+    private Setter assigner(Token name) {
+        Local local = resolveLocal(current, name.lexeme);
+        if (local != null) {
+            int slot = local.slot();
+            if (local.captured()) return (frame, value) -> ((Cell) frame.slots[slot]).value = value;
+            return (frame, value) -> frame.slots[slot] = value;
+        }
+        int upvalue = resolveUpvalue(current, name.lexeme);
+        if (upvalue != -1) return (frame, value) -> frame.upvalues[upvalue].value = value;
+        Global global = engine.global(name.lexeme);
+        return (frame, value) -> global.assign(name, value);
+    }
+
+    private ExprNode getter(String name, Token where) {
+        Local local = resolveLocal(current, name);
+        if (local != null) {
+            int slot = local.slot();
+            if (local.captured()) return frame -> ((Cell) frame.slots[slot]).value;
+            return frame -> frame.slots[slot];
+        }
+        int upvalue = resolveUpvalue(current, name);
+        if (upvalue != -1) return frame -> frame.upvalues[upvalue].value;
+        Global global = engine.global(name);
+        return frame -> global.get(where);
+    }
+
+    private static Local resolveLocal(FunctionScope scope, String name) {
+        for (int i = scope.locals.size() - 1; i >= 0; i--) {
+            if (scope.locals.get(i).name().equals(name)) return scope.locals.get(i);
+        }
+        return null;
+    }
+
+    private static int resolveUpvalue(FunctionScope scope, String name) {
+        if (scope.enclosing == null) return -1;
+        Local local = resolveLocal(scope.enclosing, name);
+        if (local != null) return addUpvalue(scope, new Upvalue(local.slot(), true));
+        int upvalue = resolveUpvalue(scope.enclosing, name);
+        if (upvalue != -1) return addUpvalue(scope, new Upvalue(upvalue, false));
+        return -1;
+    }
+
+    private static int addUpvalue(FunctionScope scope, Upvalue upvalue) {
+        int existing = scope.upvalues.indexOf(upvalue);
+        if (existing != -1) return existing;
+        scope.upvalues.add(upvalue);
+        return scope.upvalues.size() - 1;
+    }
+}
@@ -0,0 +1,11 @@
+package com.Jlox.closure;
+
+/* A compiled statement. Instead of throwing, it reports how control leaves it. */
+@FunctionalInterface
+interface StmtNode {
+    int NORMAL = 0;
+    int RETURN = 1;
+    int BREAK = 2;
+
+    int exec(Frame frame);
+}
@@ -0,0 +1,114 @@
+package com.Jlox.jvm;
+
+import com.Jlox.Stmt;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/*
+ * Compiles a script ahead of time into an executable jar. Next to the generated classes the jar
+ * gets the classes of jlox they use at run time, found by following the class references in the
+ * constant pools, so the scanner, parser and resolver are left out.
+ */
+public final class AotCompiler {
+    static final String MAIN_CLASS = "Main";
+    private static final String RUNTIME_PACKAGE = "com/Jlox/";
+
+    private AotCompiler() {}
+
+    /* Writes the jar, or reports an error and returns false. */
+    public static boolean compile(List<Stmt> stmts, Path script, Path jar) throws IOException {
+        Map<String, byte[]> classes =
+                JvmCompiler.compile(stmts, MAIN_CLASS, script.getFileName().toString());
+        if (classes == null) return false;
+
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, MAIN_CLASS);
+        try (OutputStream file = Files.newOutputStream(jar);
+                JarOutputStream out = new JarOutputStream(file, manifest)) {
+            for (Map.Entry<String, byte[]> entry : classes.entrySet())
+                write(out, entry.getKey(), entry.getValue());
+            for (String name : runtimeClasses(classes.values()))
+                write(out, name, readClass(name));
+        }
+        return true;
+    }
+
+    private static void write(JarOutputStream out, String name, byte[] bytes)
+            throws IOException {
+        out.putNextEntry(new JarEntry(name + ".class"));
+        out.write(bytes);
+        out.closeEntry();
+    }
+
+    private static Set<String> runtimeClasses(Iterable<byte[]> generated) throws IOException {
+        Set<String> found = new LinkedHashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        for (byte[] bytes : generated) pending.addAll(classReferences(bytes));
+        while (!pending.isEmpty()) {
+            String name = pending.pop();
+            if (!name.startsWith(RUNTIME_PACKAGE) || !found.add(name)) continue;
+            pending.addAll(classReferences(readClass(name)));
+        }
+        return found;
+    }
+
+    private static byte[] readClass(String name) throws IOException {
+        try (InputStream in = AotCompiler.class.getResourceAsStream("/" + name + ".class")) {
+            if (in == null) throw new IOException("Missing runtime class " + name);
+            return in.readAllBytes();
+        }
+    }
+
+    /* Returns the names of the CONSTANT_Class entries of a class file. */
+    private static List<String> classReferences(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        in.skipBytes(8);
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        List<Integer> classIndexes = new ArrayList<>();
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1 -> utf8[i] = in.readUTF();
+                case 7 -> classIndexes.add(in.readUnsignedShort());
+                case 8, 16, 19, 20 -> in.skipBytes(2);
+                case 15 -> in.skipBytes(3);
+                case 3, 4, 9, 10, 11, 12, 17, 18 -> in.skipBytes(4);
+                case 5, 6 -> {
+                    in.skipBytes(8);
+                    i++;
+                }
+                default -> throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+        List<String> names = new ArrayList<>();
+        for (int index : classIndexes) {
+            String name = utf8[index];
+            int element = name.lastIndexOf('[') + 1;
+            if (element > 0) {
+                if (name.charAt(element) != 'L') continue;
+                name = name.substring(element + 1, name.length() - 1);
+            }
+            names.add(name);
+        }
+        return names;
+    }
+}
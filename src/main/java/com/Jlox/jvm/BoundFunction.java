@@ -0,0 +1,38 @@
+package com.Jlox.jvm;
+
+import com.Jlox.Interpreter;
+import com.Jlox.LoxCallable;
+import com.Jlox.LoxInstance;
+
+import java.util.List;
+
+/* A compiled method bound to the instance it was accessed on. */
+final class BoundFunction implements LoxCallable {
+    private final CompiledFunction function;
+    private final LoxInstance receiver;
+
+    BoundFunction(CompiledFunction function, LoxInstance receiver) {
+        this.function = function;
+        this.receiver = receiver;
+    }
+
+    @Override
+    public int arity() {
+        return function.arity();
+    }
+
+    @Override
+    public Object call(Object[] args) {
+        return function.invoke(receiver, args);
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> args) {
+        return function.invoke(receiver, args.toArray());
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+}
@@ -0,0 +1,10 @@
+package com.Jlox.jvm;
+
+/* Holds a local variable that is captured by a nested function. */
+public final class Cell {
+    public Object value;
+
+    public Cell(Object value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,244 @@
+package com.Jlox.jvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Writes a class file. Version 49 is used on purpose: its verifier infers the types itself, so the
+ * generated methods need no StackMapTable.
+ */
+final class ClassWriter {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int VERSION = 49;
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    final String name;
+    private final String superName;
+    private final String[] interfaces;
+    private final String sourceFile;
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndexes = new HashMap<>();
+    private int poolCount = 1;
+    /* Set once the class outgrows the limits of the class file format, leaving it without bytes. */
+    private boolean tooLarge = false;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    ClassWriter(String name, String superName, String sourceFile, String... interfaces) {
+        this.name = name;
+        this.superName = superName;
+        this.sourceFile = sourceFile;
+        this.interfaces = interfaces;
+    }
+
+    void field(int access, String name, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        write(
+                () -> {
+                    out.writeShort(access);
+                    out.writeShort(utf8(name));
+                    out.writeShort(utf8(descriptor));
+                    out.writeShort(0);
+                });
+        fields.add(bytes.toByteArray());
+    }
+
+    Code method(int access, String name, String descriptor, int argSlots) {
+        return new Code(this, access, name, descriptor, argSlots);
+    }
+
+    /* Called by Code.end() with the finished method. */
+    void addMethod(Code code) {
+        byte[] body = code.toAttribute();
+        if (body == null) {
+            tooLarge = true;
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        write(
+                () -> {
+                    out.writeShort(code.access);
+                    out.writeShort(utf8(code.name));
+                    out.writeShort(utf8(code.descriptor));
+                    out.writeShort(1);
+                    out.writeShort(utf8("Code"));
+                    out.writeInt(body.length);
+                    out.write(body);
+                });
+        methods.add(bytes.toByteArray());
+    }
+
+    /* Returns the class file, or null if the class is too large for one. */
+    byte[] toBytes() {
+        int thisIndex = classRef(name);
+        int superIndex = classRef(superName);
+        int[] interfaceIndexes = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) interfaceIndexes[i] = classRef(interfaces[i]);
+        int sourceAttribute = sourceFile == null ? 0 : utf8("SourceFile");
+        int sourceIndex = sourceFile == null ? 0 : utf8(sourceFile);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        write(
+                () -> {
+                    out.writeInt(0xCAFEBABE);
+                    out.writeShort(0);
+                    out.writeShort(VERSION);
+                    out.writeShort(poolCount);
+                    out.write(poolBytes.toByteArray());
+                    out.writeShort(ACC_PUBLIC | ACC_SUPER);
+                    out.writeShort(thisIndex);
+                    out.writeShort(superIndex);
+                    out.writeShort(interfaceIndexes.length);
+                    for (int index : interfaceIndexes) out.writeShort(index);
+                    out.writeShort(fields.size());
+                    for (byte[] field : fields) out.write(field);
+                    out.writeShort(methods.size());
+                    for (byte[] method : methods) out.write(method);
+                    if (sourceFile == null) {
+                        out.writeShort(0);
+                    } else {
+                        out.writeShort(1);
+                        out.writeShort(sourceAttribute);
+                        out.writeInt(2);
+                        out.writeShort(sourceIndex);
+                    }
+                });
+        return tooLarge ? null : bytes.toByteArray();
+    }
+
+    int utf8(String value) {
+        return constant(
+                "U" + value,
+                1,
+                () -> {
+                    pool.writeByte(CONSTANT_UTF8);
+                    pool.writeUTF(value);
+                });
+    }
+
+    int classRef(String internalName) {
+        int nameIndex = utf8(internalName);
+        return constant(
+                "C" + internalName,
+                1,
+                () -> {
+                    pool.writeByte(CONSTANT_CLASS);
+                    pool.writeShort(nameIndex);
+                });
+    }
+
+    int string(String value) {
+        int valueIndex = utf8(value);
+        return constant(
+                "S" + value,
+                1,
+                () -> {
+                    pool.writeByte(CONSTANT_STRING);
+                    pool.writeShort(valueIndex);
+                });
+    }
+
+    int integer(int value) {
+        return constant(
+                "I" + value,
+                1,
+                () -> {
+                    pool.writeByte(CONSTANT_INTEGER);
+                    pool.writeInt(value);
+                });
+    }
+
+    int doubleConstant(double value) {
+        return constant(
+                "D" + Double.doubleToRawLongBits(value),
+                2,
+                () -> {
+                    pool.writeByte(CONSTANT_DOUBLE);
+                    pool.writeDouble(value);
+                });
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_INTERFACE_METHODREF, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType =
+                constant(
+                        "N" + name + ";" + descriptor,
+                        1,
+                        () -> {
+                            pool.writeByte(CONSTANT_NAME_AND_TYPE);
+                            pool.writeShort(nameIndex);
+                            pool.writeShort(descriptorIndex);
+                        });
+        return constant(
+                tag + owner + "." + name + ";" + descriptor,
+                1,
+                () -> {
+                    pool.writeByte(tag);
+                    pool.writeShort(ownerIndex);
+                    pool.writeShort(nameAndType);
+                });
+    }
+
+    private interface Output {
+        void write() throws IOException;
+    }
+
+    private int constant(String key, int size, Output entry) {
+        Integer index = poolIndexes.get(key);
+        if (index != null) return index;
+        if (poolCount + size > 0xFFFF) {
+            tooLarge = true;
+            return 0;
+        }
+        write(entry);
+        index = poolCount;
+        poolCount += size;
+        poolIndexes.put(key, index);
+        return index;
+    }
+
+    private static void write(Output output) {
+        try {
+            output.write();
+        } catch (IOException err) {
+            throw new UncheckedIOException(err);
+        }
+    }
+}
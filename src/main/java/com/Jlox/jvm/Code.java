@@ -0,0 +1,295 @@
+package com.Jlox.jvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Assembles the body of one method. It keeps track of the operand stack depth as instructions are
+ * added, which is enough to compute max_stack for the code generated by the JvmCompiler.
+ */
+final class Code {
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_M1 = 0x02;
+    static final int ICONST_0 = 0x03;
+    static final int ICONST_5 = 0x08;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int ALOAD = 0x19;
+    static final int ASTORE = 0x3a;
+    static final int AALOAD = 0x32;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int DUP_X1 = 0x5a;
+    static final int SWAP = 0x5f;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int PUTSTATIC = 0xb3;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int NEW = 0xbb;
+    static final int ANEWARRAY = 0xbd;
+    static final int WIDE = 0xc4;
+    static final int IFNONNULL = 0xc7;
+
+    private static final int MAX_CODE = 0xFFFF;
+
+    static final class Label {
+        private int position = -1;
+        private int stack = -1;
+        private final List<Integer> jumps = new ArrayList<>();
+    }
+
+    private record Handler(Label start, Label end, Label handler, int type) {}
+
+    private final ClassWriter owner;
+    final int access;
+    final String name;
+    final String descriptor;
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final List<Handler> handlers = new ArrayList<>();
+    private final List<int[]> lines = new ArrayList<>();
+    private final List<Label> labels = new ArrayList<>();
+    private int stack = 0;
+    private int maxStack = 0;
+    private int maxLocals;
+
+    Code(ClassWriter owner, int access, String name, String descriptor, int argSlots) {
+        this.owner = owner;
+        this.access = access;
+        this.name = name;
+        this.descriptor = descriptor;
+        this.maxLocals = argSlots;
+    }
+
+    void op(int opcode) {
+        bytes.write(opcode);
+        switch (opcode) {
+            case ACONST_NULL, DUP, DUP_X1 -> adjust(1);
+            case AALOAD, POP, ARETURN -> adjust(-1);
+            case AASTORE -> adjust(-3);
+            case SWAP, RETURN -> {}
+            default -> {
+                if (opcode < ICONST_M1 || opcode > ICONST_5)
+                    throw new IllegalArgumentException("Unknown opcode " + opcode);
+                adjust(1);
+            }
+        }
+    }
+
+    void iconst(int value) {
+        if (value >= -1 && value <= 5) {
+            op(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            bytes.write(BIPUSH);
+            bytes.write(value);
+            adjust(1);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            bytes.write(SIPUSH);
+            writeShort(value);
+            adjust(1);
+        } else {
+            ldcIndex(owner.integer(value));
+        }
+    }
+
+    void ldc(String value) {
+        ldcIndex(owner.string(value));
+    }
+
+    void ldc(double value) {
+        bytes.write(LDC2_W);
+        writeShort(owner.doubleConstant(value));
+        adjust(2);
+    }
+
+    private void ldcIndex(int index) {
+        if (index < 256) {
+            bytes.write(LDC);
+            bytes.write(index);
+        } else {
+            bytes.write(LDC_W);
+            writeShort(index);
+        }
+        adjust(1);
+    }
+
+    void aload(int slot) {
+        local(ALOAD, slot);
+        adjust(1);
+    }
+
+    void astore(int slot) {
+        local(ASTORE, slot);
+        adjust(-1);
+    }
+
+    private void local(int opcode, int slot) {
+        maxLocals = Math.max(maxLocals, slot + 1);
+        if (slot < 256) {
+            bytes.write(opcode);
+            bytes.write(slot);
+        } else {
+            bytes.write(WIDE);
+            bytes.write(opcode);
+            writeShort(slot);
+        }
+    }
+
+    void field(int opcode, String owner, String name, String descriptor) {
+        bytes.write(opcode);
+        writeShort(this.owner.fieldRef(owner, name, descriptor));
+        int size = slots(descriptor.charAt(0));
+        switch (opcode) {
+            case GETSTATIC -> adjust(size);
+            case PUTSTATIC -> adjust(-size);
+            case GETFIELD -> adjust(size - 1);
+            case PUTFIELD -> adjust(-size - 1);
+            default -> throw new IllegalArgumentException("Not a field opcode " + opcode);
+        }
+    }
+
+    void invoke(int opcode, String owner, String name, String descriptor) {
+        bytes.write(opcode);
+        int argSlots = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            argSlots += descriptor.charAt(i) == '[' ? 1 : slots(descriptor.charAt(i));
+            while (descriptor.charAt(i) == '[') i++;
+            i = descriptor.charAt(i) == 'L' ? descriptor.indexOf(';', i) + 1 : i + 1;
+        }
+        if (opcode == INVOKEINTERFACE) {
+            writeShort(this.owner.interfaceMethodRef(owner, name, descriptor));
+            bytes.write(argSlots + 1);
+            bytes.write(0);
+        } else {
+            writeShort(this.owner.methodRef(owner, name, descriptor));
+        }
+        int receiver = opcode == INVOKESTATIC ? 0 : 1;
+        adjust(slots(descriptor.charAt(i + 1)) - argSlots - receiver);
+    }
+
+    void type(int opcode, String className) {
+        bytes.write(opcode);
+        writeShort(owner.classRef(className));
+        if (opcode == NEW) adjust(1);
+    }
+
+    Label label() {
+        Label label = new Label();
+        labels.add(label);
+        return label;
+    }
+
+    void jump(int opcode, Label target) {
+        switch (opcode) {
+            case IFEQ, IFNE, IFNONNULL -> adjust(-1);
+            case GOTO -> {}
+            default -> throw new IllegalArgumentException("Not a jump opcode " + opcode);
+        }
+        target.stack = stack;
+        target.jumps.add(bytes.size());
+        bytes.write(opcode);
+        writeShort(0);
+    }
+
+    void place(Label label) {
+        label.position = bytes.size();
+        if (label.stack >= 0) stack = label.stack;
+        else label.stack = stack;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    /* Catches exceptions of the given type thrown between start and end, landing on handler. */
+    void tryCatch(Label start, Label end, Label handler, String type) {
+        handler.stack = 1;
+        handlers.add(new Handler(start, end, handler, owner.classRef(type)));
+    }
+
+    void line(int line) {
+        if (!lines.isEmpty() && lines.getLast()[1] == line) return;
+        lines.add(new int[] {bytes.size(), line});
+    }
+
+    void end() {
+        owner.addMethod(this);
+    }
+
+    /* Returns the Code attribute, or null if the method is too large for one. */
+    byte[] toAttribute() {
+        byte[] code = bytes.toByteArray();
+        if (code.length > MAX_CODE) return null;
+        for (Label label : labels) {
+            for (int jump : label.jumps) {
+                int offset = label.position - jump;
+                if (offset != (short) offset) return null;
+                code[jump + 1] = (byte) (offset >> 8);
+                code[jump + 2] = (byte) offset;
+            }
+        }
+        int lineTable = lines.isEmpty() ? 0 : owner.utf8("LineNumberTable");
+        ByteArrayOutputStream attribute = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(attribute);
+        try {
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(handlers.size());
+            for (Handler handler : handlers) {
+                out.writeShort(handler.start().position);
+                out.writeShort(handler.end().position);
+                out.writeShort(handler.handler().position);
+                out.writeShort(handler.type());
+            }
+            if (lines.isEmpty()) {
+                out.writeShort(0);
+            } else {
+                out.writeShort(1);
+                out.writeShort(lineTable);
+                out.writeInt(2 + lines.size() * 4);
+                out.writeShort(lines.size());
+                for (int[] line : lines) {
+                    out.writeShort(line[0]);
+                    out.writeShort(line[1]);
+                }
+            }
+        } catch (IOException err) {
+            throw new UncheckedIOException(err);
+        }
+        return attribute.toByteArray();
+    }
+
+    private void adjust(int delta) {
+        stack += delta;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    private void writeShort(int value) {
+        bytes.write(value >> 8);
+        bytes.write(value);
+    }
+
+    private static int slots(char type) {
+        return switch (type) {
+            case 'V' -> 0;
+            case 'J', 'D' -> 2;
+            default -> 1;
+        };
+    }
+}
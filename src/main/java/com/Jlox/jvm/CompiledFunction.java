@@ -0,0 +1,58 @@
+package com.Jlox.jvm;
+
+import com.Jlox.Interpreter;
+import com.Jlox.LoxCallable;
+import com.Jlox.LoxInstance;
+import com.Jlox.LoxMethod;
+
+import java.util.List;
+
+/* Base class of the classes generated for Lox functions and methods. */
+public abstract class CompiledFunction implements LoxMethod {
+    private final String name;
+    private final int arity;
+    protected final Cell[] upvalues;
+
+    protected CompiledFunction(String name, int arity, Cell[] upvalues) {
+        this.name = name;
+        this.arity = arity;
+        this.upvalues = upvalues;
+    }
+
+    /* Runs the body. The receiver is only used by methods. */
+    public abstract Object invoke(Object receiver, Object[] args);
+
+    String name() {
+        return name;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public Object call(Object[] args) {
+        return invoke(null, args);
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> args) {
+        return invoke(null, args.toArray());
+    }
+
+    @Override
+    public Object invoke(Interpreter interpreter, LoxInstance receiver, List<Object> args) {
+        return invoke(receiver, args.toArray());
+    }
+
+    @Override
+    public LoxCallable bind(LoxInstance instance) {
+        return new BoundFunction(this, instance);
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + name + ">";
+    }
+}
@@ -0,0 +1,1029 @@
+package com.Jlox.jvm;
+
+import static com.Jlox.jvm.ClassWriter.ACC_FINAL;
+import static com.Jlox.jvm.ClassWriter.ACC_PUBLIC;
+import static com.Jlox.jvm.ClassWriter.ACC_STATIC;
+import static com.Jlox.jvm.Code.AALOAD;
+import static com.Jlox.jvm.Code.AASTORE;
+import static com.Jlox.jvm.Code.ACONST_NULL;
+import static com.Jlox.jvm.Code.ANEWARRAY;
+import static com.Jlox.jvm.Code.ARETURN;
+import static com.Jlox.jvm.Code.DUP;
+import static com.Jlox.jvm.Code.DUP_X1;
+import static com.Jlox.jvm.Code.GETFIELD;
+import static com.Jlox.jvm.Code.GETSTATIC;
+import static com.Jlox.jvm.Code.GOTO;
+import static com.Jlox.jvm.Code.IFEQ;
+import static com.Jlox.jvm.Code.IFNE;
+import static com.Jlox.jvm.Code.IFNONNULL;
+import static com.Jlox.jvm.Code.INVOKEINTERFACE;
+import static com.Jlox.jvm.Code.INVOKESPECIAL;
+import static com.Jlox.jvm.Code.INVOKESTATIC;
+import static com.Jlox.jvm.Code.INVOKEVIRTUAL;
+import static com.Jlox.jvm.Code.NEW;
+import static com.Jlox.jvm.Code.POP;
+import static com.Jlox.jvm.Code.PUTFIELD;
+import static com.Jlox.jvm.Code.PUTSTATIC;
+import static com.Jlox.jvm.Code.RETURN;
+import static com.Jlox.jvm.Code.SWAP;
+
+import com.Jlox.CaptureAnalyzer;
+import com.Jlox.Environment;
+import com.Jlox.Expr;
+import com.Jlox.Jlox;
+import com.Jlox.Stmt;
+import com.Jlox.Token;
+import com.Jlox.TokenType;
+import com.Jlox.jvm.Code.Label;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Translates a resolved program into JVM classes. The script becomes the main class, which keeps
+ * every global in a static field, and each function or method becomes a subclass of
+ * CompiledFunction. Locals live in JVM local variables, or in a Cell when a nested function
+ * captures them.
+ *
+ * The same translation compiles single hot functions of the tree-walker. There, the variables that
+ * are not locals of the function are reached through the Cells of its upvalues.
+ */
+public final class JvmCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final String OBJECT = "java/lang/Object";
+    private static final String BOOLEAN = "java/lang/Boolean";
+    private static final String CELL = "com/Jlox/jvm/Cell";
+    private static final String FUNCTION = "com/Jlox/jvm/CompiledFunction";
+    private static final String RUNTIME = "com/Jlox/jvm/LoxRuntime";
+    private static final String OPERATORS = "com/Jlox/Operators";
+    private static final String CLOCK = "com/Jlox/NativeFunctions/Clock";
+    private static final String ERROR = "com/Jlox/RunTimeEvalError";
+    private static final String INTERPRETER = "com/Jlox/Interpreter";
+    private static final String ENVIRONMENT = "com/Jlox/Environment";
+    private static final String HOT_FUNCTION = "com/Jlox/Tiering$HotFunction";
+    private static final String TREE_CELL = "com/Jlox/Cell";
+    private static final String TREE_CELL_D = "L" + TREE_CELL + ";";
+
+    private static final String OBJECT_D = "Ljava/lang/Object;";
+    private static final String TOKEN_D = "Lcom/Jlox/Token;";
+    private static final String CELLS_D = "[Lcom/Jlox/jvm/Cell;";
+    private static final String CLASS_D = "Lcom/Jlox/LoxClass;";
+    private static final String INSTANCE_D = "Lcom/Jlox/LoxInstance;";
+    private static final String CALLABLE_D = "Lcom/Jlox/LoxCallable;";
+    private static final String LIST_D = "Ljava/util/List;";
+    private static final String ENVIRONMENT_D = "Lcom/Jlox/Environment;";
+    private static final String ARGS_D = "[Ljava/lang/Object;";
+    private static final String INVOKE_D = method(OBJECT_D, OBJECT_D, ARGS_D);
+    private static final String HOT_CALL_D =
+            method(OBJECT_D, "L" + INTERPRETER + ";", INSTANCE_D, "[" + TREE_CELL_D, LIST_D);
+    private static final String ARITHMETIC_D = method(OBJECT_D, OBJECT_D, OBJECT_D, TOKEN_D);
+    private static final String COMPARISON_D = method("Z", OBJECT_D, OBJECT_D, TOKEN_D);
+
+    /* JVM local variables of the invoke method of a function class. */
+    private static final int RECEIVER_SLOT = 1;
+    private static final int ARGS_SLOT = 2;
+
+    /* JVM local variables of the call method of a hot function. */
+    private static final int INTERPRETER_SLOT = 1;
+    private static final int THIS_SLOT = 2;
+    private static final int UPVALUES_SLOT = 3;
+    private static final int ARG_LIST_SLOT = 4;
+
+    private enum FunctionKind {
+        SCRIPT,
+        FUNCTION,
+        METHOD,
+        INITIALIZER
+    }
+
+    private record Local(String name, int depth, int slot, boolean captured) {}
+
+    private record Upvalue(int index, boolean isLocal) {}
+
+    private record Loop(Loop enclosing, Token name, Label end) {}
+
+    private record Function(String className, List<Upvalue> upvalues) {}
+
+
+    /* A generated class with the tokens and number constants its code loads from static fields. */
+    private static class ClassScope {
+        final ClassWriter writer;
+        final Map<Token, Integer> tokens = new IdentityHashMap<>();
+        final Map<Object, Integer> constants = new LinkedHashMap<>();
+        /* Globals of the tree-walker that a hot function uses, whose Cells it caches. */
+        final Map<String, Integer> globalCells = new LinkedHashMap<>();
+
+        ClassScope(ClassWriter writer) {
+            this.writer = writer;
+        }
+    }
+
+    private static class FunctionScope {
+        final FunctionScope enclosing;
+        final FunctionKind kind;
+        final ClassScope owner;
+        final Code code;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        int nextSlot;
+        Loop loop = null;
+
+        FunctionScope(FunctionScope enclosing, FunctionKind kind, ClassScope owner, Code code) {
+            this.enclosing = enclosing;
+            this.kind = kind;
+            this.owner = owner;
+            this.code = code;
+        }
+    }
+
+    private final String mainClass;
+    private final String sourceFile;
+    private final Set<Object> captured;
+    /* Whether a hot function of the tree-walker is compiled, rather than a whole script. */
+    private final boolean hot;
+    private final Map<String, byte[]> classes = new LinkedHashMap<>();
+    private final Set<String> classNames = new HashSet<>();
+    private final Set<String> globals = new LinkedHashSet<>();
+    private FunctionScope current;
+    private Code code;
+    private boolean hadError = false;
+
+    private JvmCompiler(
+            String mainClass,
+            String sourceFile,
+            Set<Object> captured,
+            boolean hot) {
+        this.mainClass = mainClass;
+        this.sourceFile = sourceFile;
+        this.captured = captured;
+        this.hot = hot;
+        // Reserved so that the main class comes first.
+        classNames.add(mainClass);
+        classes.put(mainClass, null);
+    }
+
+    /* Returns the generated classes by internal name, the main class first, or null on error. */
+    static Map<String, byte[]> compile(List<Stmt> stmts, String mainClass, String sourceFile) {
+        JvmCompiler compiler =
+                new JvmCompiler(mainClass, sourceFile, CaptureAnalyzer.analyze(stmts), false);
+        ClassScope main = new ClassScope(new ClassWriter(mainClass, OBJECT, sourceFile));
+        compiler.script(main, stmts);
+        if (compiler.hadError) return null;
+        // A class that outgrew the limits of the class file format has no bytes.
+        if (compiler.classes.containsValue(null)) {
+            Jlox.error(0, "Script is too large to compile.");
+            return null;
+        }
+        return compiler.classes;
+    }
+
+    /*
+     * Compiles a function of the tree-walker into a class implementing Tiering.HotFunction. Returns
+     * null when the body declares a function or a class, since their closures would need the
+     * locals of the body to live in Cells.
+     */
+    public static byte[] compileHot(Stmt.Function stmt, boolean isInitializer, String className) {
+        if (declaresClosures(stmt.body)) return null;
+        JvmCompiler compiler = new JvmCompiler(className, null, Set.of(), true);
+        ClassWriter writer = new ClassWriter(className, OBJECT, null, HOT_FUNCTION);
+        compiler.hot(new ClassScope(writer), stmt, isInitializer);
+        return compiler.classes.get(className);
+    }
+
+    /* Whether the statements declare a function or a class, anywhere but in nested functions. */
+    private static boolean declaresClosures(List<Stmt> stmts) {
+        for (Stmt stmt : stmts) {
+            if (declaresClosures(stmt)) return true;
+        }
+        return false;
+    }
+
+    private static boolean declaresClosures(Stmt stmt) {
+        return switch (stmt) {
+            case Stmt.Function node -> true;
+            case Stmt.Class node -> true;
+            case Stmt.Block node -> declaresClosures(node.stmts);
+            case Stmt.If node ->
+                    declaresClosures(node.thenBranch)
+                            || (node.elseBranch != null && declaresClosures(node.elseBranch));
+            case Stmt.While node -> declaresClosures(node.body);
+            case Stmt.For node ->
+                    (node.initializer != null && declaresClosures(node.initializer))
+                            || declaresClosures(node.body);
+            default -> false;
+        };
+    }
+
+    private void hot(ClassScope owner, Stmt.Function stmt, boolean isInitializer) {
+        ClassWriter writer = owner.writer;
+        FunctionKind kind =
+                isInitializer
+                        ? FunctionKind.INITIALIZER
+                        : stmt.isMethod ? FunctionKind.METHOD : FunctionKind.FUNCTION;
+        Code call = writer.method(ACC_PUBLIC, "call", HOT_CALL_D, ARG_LIST_SLOT + 1);
+        enter(new FunctionScope(null, kind, owner, call));
+        beginScope();
+        if (stmt.isMethod) current.locals.add(new Local("this", 0, THIS_SLOT, false));
+        current.nextSlot = ARG_LIST_SLOT + 1;
+        for (int i = 0; i < stmt.params.size(); i++) {
+            Token param = stmt.params.get(i);
+            code.aload(ARG_LIST_SLOT);
+            code.iconst(i);
+            code.invoke(INVOKEINTERFACE, "java/util/List", "get", "(I)" + OBJECT_D);
+            define(declare(param.lexeme, param), param.lexeme);
+        }
+        for (Stmt inner : stmt.body) compile(inner);
+        if (isInitializer) load("this", stmt.name);
+        else code.op(ACONST_NULL);
+        code.op(ARETURN);
+        code.end();
+        leave();
+
+        Code init = writer.method(ACC_PUBLIC, "<init>", "()V", 1);
+        init.aload(0);
+        init.invoke(INVOKESPECIAL, OBJECT, "<init>", "()V");
+        init.op(RETURN);
+        init.end();
+        Code clinit = staticFields(owner);
+        clinit.op(RETURN);
+        clinit.end();
+        finish(owner);
+    }
+
+    private void script(ClassScope main, List<Stmt> stmts) {
+        ClassWriter writer = main.writer;
+        Code run = writer.method(ACC_PUBLIC | ACC_STATIC, "run", "()V", 0);
+        enter(new FunctionScope(null, FunctionKind.SCRIPT, main, run));
+        for (Stmt stmt : stmts) compile(stmt);
+        code.op(RETURN);
+        code.end();
+
+        Code mainMethod =
+                writer.method(ACC_PUBLIC | ACC_STATIC, "main", "([Ljava/lang/String;)V", 1);
+        Label start = mainMethod.label();
+        Label end = mainMethod.label();
+        Label handler = mainMethod.label();
+        mainMethod.place(start);
+        mainMethod.invoke(INVOKESTATIC, mainClass, "run", "()V");
+        mainMethod.place(end);
+        mainMethod.op(RETURN);
+        mainMethod.tryCatch(start, end, handler, ERROR);
+        mainMethod.tryCatch(start, end, handler, "java/lang/StackOverflowError");
+        mainMethod.place(handler);
+        mainMethod.invoke(INVOKESTATIC, RUNTIME, "fail", "(Ljava/lang/Throwable;)V");
+        mainMethod.op(RETURN);
+        mainMethod.end();
+
+        Code clinit = staticFields(main);
+        globals.add("clock");
+        for (String global : globals) {
+            writer.field(ACC_STATIC, global, OBJECT_D);
+            if (global.equals("clock")) {
+                clinit.type(NEW, CLOCK);
+                clinit.op(DUP);
+                clinit.invoke(INVOKESPECIAL, CLOCK, "<init>", "()V");
+            } else {
+                clinit.field(GETSTATIC, RUNTIME, "UNDEFINED", OBJECT_D);
+            }
+            clinit.field(PUTSTATIC, mainClass, global, OBJECT_D);
+        }
+        clinit.op(RETURN);
+        clinit.end();
+        finish(main);
+    }
+
+    private void enter(FunctionScope scope) {
+        current = scope;
+        code = scope.code;
+    }
+
+    private void leave() {
+        current = current.enclosing;
+        code = current == null ? null : current.code;
+    }
+
+    /* Declares the token and constant fields of a class and returns its unfinished <clinit>. */
+    private Code staticFields(ClassScope scope) {
+        ClassWriter writer = scope.writer;
+        Code clinit = writer.method(ACC_STATIC, "<clinit>", "()V", 0);
+        for (Map.Entry<Token, Integer> token : scope.tokens.entrySet()) {
+            String field = "$t" + token.getValue();
+            writer.field(ACC_STATIC | ACC_FINAL, field, TOKEN_D);
+            clinit.ldc(token.getKey().lexeme);
+            clinit.iconst(token.getKey().line);
+            clinit.invoke(INVOKESTATIC, RUNTIME, "token", "(Ljava/lang/String;I)" + TOKEN_D);
+            clinit.field(PUTSTATIC, writer.name, field, TOKEN_D);
+        }
+        for (Map.Entry<Object, Integer> constant : scope.constants.entrySet()) {
+            String field = "$c" + constant.getValue();
+            writer.field(ACC_STATIC | ACC_FINAL, field, OBJECT_D);
+            if (constant.getKey() instanceof Integer value) {
+                clinit.iconst(value);
+                clinit.invoke(
+                        INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;");
+            } else {
+                clinit.ldc((Double) constant.getKey());
+                clinit.invoke(
+                        INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+            }
+            clinit.field(PUTSTATIC, writer.name, field, OBJECT_D);
+        }
+        for (int index : scope.globalCells.values())
+            writer.field(ACC_STATIC, "$g" + index, TREE_CELL_D);
+        return clinit;
+    }
+
+    private void finish(ClassScope scope) {
+        classes.put(scope.writer.name, scope.writer.toBytes());
+    }
+
+    private String className(String name) {
+        String className = mainClass + "$" + name;
+        for (int i = 2; !classNames.add(className); i++) {
+            className = mainClass + "$" + name + "$" + i;
+        }
+        return className;
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        if (stmt.expr instanceof Expr.Literal) return null;
+        compile(stmt.expr);
+        code.op(POP);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        code.field(GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;");
+        compile(stmt.expr);
+        code.invoke(INVOKESTATIC, OPERATORS, "stringify", method("Ljava/lang/String;", OBJECT_D));
+        code.invoke(INVOKEVIRTUAL, "java/io/PrintStream", "println", "(Ljava/lang/String;)V");
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) code.op(ACONST_NULL);
+        else compile(stmt.initializer);
+        define(declare(stmt.name.lexeme, stmt.name), stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt inner : stmt.stmts) compile(inner);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Label elseBranch = code.label();
+        condition(stmt.condition, elseBranch);
+        compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            code.place(elseBranch);
+            return null;
+        }
+        Label end = code.label();
+        code.jump(GOTO, end);
+        code.place(elseBranch);
+        compile(stmt.elseBranch);
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Label start = code.label();
+        Label end = code.label();
+        code.place(start);
+        condition(stmt.condition, end);
+        Loop loop = new Loop(current.loop, stmt.name, end);
+        current.loop = loop;
+        compile(stmt.body);
+        current.loop = loop.enclosing();
+        code.jump(GOTO, start);
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        beginScope();
+        if (stmt.initializer != null) compile(stmt.initializer);
+        Label start = code.label();
+        Label end = code.label();
+        code.place(start);
+        condition(stmt.condition, end);
+        Loop loop = new Loop(current.loop, stmt.name, end);
+        current.loop = loop;
+        compile(stmt.body);
+        current.loop = loop.enclosing();
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            code.op(POP);
+        }
+        code.jump(GOTO, start);
+        code.place(end);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        Loop loop = current.loop;
+        if (stmt.name != null) {
+            while (loop != null
+                    && (loop.name() == null || !loop.name().lexeme.equals(stmt.name.lexeme)))
+                loop = loop.enclosing();
+        }
+        if (loop == null) {
+            hadError = true;
+            if (stmt.name == null)
+                Jlox.error(stmt.keyword, "Can't break outside while- or for- loop.");
+            else Jlox.error(stmt.name, "No enclosing loop named '" + stmt.name.lexeme + "'.");
+            return null;
+        }
+        code.jump(GOTO, loop.end());
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (current.kind == FunctionKind.INITIALIZER) load("this", stmt.keyword);
+        else if (stmt.value == null) code.op(ACONST_NULL);
+        else compile(stmt.value);
+        code.op(ARETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        if (hot) throw new IllegalStateException("A hot function declares a function.");
+        // Declared before the body is compiled so that the function can refer to itself.
+        Local local = declare(stmt.name.lexeme, stmt.name);
+        if (local != null && local.captured()) {
+            code.op(ACONST_NULL);
+            define(local, stmt.name.lexeme);
+            Function function = function(stmt, FunctionKind.FUNCTION, stmt.name.lexeme);
+            code.aload(local.slot());
+            closure(function);
+            code.field(PUTFIELD, CELL, "value", OBJECT_D);
+        } else {
+            closure(function(stmt, FunctionKind.FUNCTION, stmt.name.lexeme));
+            define(local, stmt.name.lexeme);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        if (hot) throw new IllegalStateException("A hot function declares a class.");
+        String name = stmt.name.lexeme;
+        Local local = declare(name, stmt.name);
+        code.op(ACONST_NULL);
+        define(local, name);
+
+        code.ldc(name);
+        if (stmt.superClass != null) {
+            compile(stmt.superClass);
+            token(stmt.name);
+            runtime("superClass", method(CLASS_D, OBJECT_D, TOKEN_D));
+            beginScope();
+            code.op(DUP);
+            define(declare("super", stmt), "super");
+        } else {
+            code.op(ACONST_NULL);
+        }
+        code.iconst(stmt.methods.size());
+        code.type(ANEWARRAY, FUNCTION);
+        for (int i = 0; i < stmt.methods.size(); i++) {
+            Stmt.Function method = stmt.methods.get(i);
+            boolean isInitializer = method.name.lexeme.equals("init");
+            code.op(DUP);
+            code.iconst(i);
+            closure(
+                    function(
+                            method,
+                            isInitializer ? FunctionKind.INITIALIZER : FunctionKind.METHOD,
+                            name + "$" + method.name.lexeme));
+            code.op(AASTORE);
+        }
+        if (stmt.superClass != null) endScope();
+        runtime("makeClass", method(CLASS_D, "Ljava/lang/String;", CLASS_D, "[L" + FUNCTION + ";"));
+        store(name, stmt.name, -1, 0);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        code.op(DUP);
+        store(expr.name.lexeme, expr.name, expr.access, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+        switch (expr.op.type) {
+            case PLUS -> arithmetic("add", expr.op);
+            case MINUS -> arithmetic("subtract", expr.op);
+            case STAR -> arithmetic("multiply", expr.op);
+            case SLASH -> arithmetic("divide", expr.op);
+            case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL, EQUAL_EQUAL -> {
+                test(expr.op);
+                box();
+            }
+            case BANG_EQUAL -> {
+                test(expr.op);
+                boxNegated();
+            }
+            default -> throw new IllegalStateException("Wrong binary operator.");
+        }
+        return null;
+    }
+
+    private void arithmetic(String operator, Token op) {
+        token(op);
+        code.invoke(INVOKESTATIC, OPERATORS, operator, ARITHMETIC_D);
+    }
+
+    /* Leaves the result of a comparison of the two operands on the stack as an int. */
+    private void test(Token op) {
+        String operator =
+                switch (op.type) {
+                    case GREATER -> "greater";
+                    case GREATER_EQUAL -> "greaterEqual";
+                    case LESS -> "less";
+                    case LESS_EQUAL -> "lessEqual";
+                    default -> null;
+                };
+        if (operator == null) {
+            code.invoke(
+                    INVOKESTATIC, "java/util/Objects", "equals", method("Z", OBJECT_D, OBJECT_D));
+        } else {
+            token(op);
+            code.invoke(INVOKESTATIC, OPERATORS, operator, COMPARISON_D);
+        }
+    }
+
+    private void box() {
+        code.invoke(INVOKESTATIC, BOOLEAN, "valueOf", "(Z)Ljava/lang/Boolean;");
+    }
+
+    private void boxNegated() {
+        Label isFalse = code.label();
+        Label end = code.label();
+        code.jump(IFEQ, isFalse);
+        code.field(GETSTATIC, BOOLEAN, "FALSE", "Ljava/lang/Boolean;");
+        code.jump(GOTO, end);
+        code.place(isFalse);
+        code.field(GETSTATIC, BOOLEAN, "TRUE", "Ljava/lang/Boolean;");
+        code.place(end);
+    }
+
+    private void runtime(String name, String descriptor) {
+        code.invoke(INVOKESTATIC, RUNTIME, name, descriptor);
+    }
+
+    private static String method(String returnType, String... paramTypes) {
+        return "(" + String.join("", paramTypes) + ")" + returnType;
+    }
+
+    private void truthy() {
+        code.invoke(INVOKESTATIC, OPERATORS, "truthy", method("Z", OBJECT_D));
+    }
+
+    /* Jumps to the given label when the condition is falsey. */
+    private void condition(Expr expr, Label ifFalse) {
+        switch (expr) {
+            case Expr.Grouping grouping -> condition(grouping.expr, ifFalse);
+            case Expr.Binary binary when binary.op.type != TokenType.PLUS
+                    && binary.op.type != TokenType.MINUS
+                    && binary.op.type != TokenType.STAR
+                    && binary.op.type != TokenType.SLASH -> {
+                compile(binary.left);
+                compile(binary.right);
+                test(binary.op);
+                code.jump(binary.op.type == TokenType.BANG_EQUAL ? IFNE : IFEQ, ifFalse);
+            }
+            case Expr.Unary unary when unary.op.type == TokenType.BANG -> {
+                compile(unary.right);
+                truthy();
+                code.jump(IFNE, ifFalse);
+            }
+            case Expr.Logical logical when logical.op.type == TokenType.AND -> {
+                condition(logical.left, ifFalse);
+                condition(logical.right, ifFalse);
+            }
+            default -> {
+                compile(expr);
+                truthy();
+                code.jump(IFEQ, ifFalse);
+            }
+        }
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expr);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        switch (expr.value) {
+            case null -> code.op(ACONST_NULL);
+            case Boolean value ->
+                    code.field(
+                            GETSTATIC, BOOLEAN, value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+            case String value -> code.ldc(value);
+            default -> {
+                Map<Object, Integer> constants = current.owner.constants;
+                Integer index = constants.get(expr.value);
+                if (index == null) {
+                    index = constants.size();
+                    constants.put(expr.value, index);
+                }
+                code.field(GETSTATIC, current.owner.writer.name, "$c" + index, OBJECT_D);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        if (expr.op.type == TokenType.MINUS) {
+            token(expr.op);
+            code.invoke(INVOKESTATIC, OPERATORS, "negate", method(OBJECT_D, OBJECT_D, TOKEN_D));
+        } else {
+            truthy();
+            boxNegated();
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        load(expr.name.lexeme, expr.name, expr.access, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        Label end = code.label();
+        compile(expr.left);
+        code.op(DUP);
+        truthy();
+        code.jump(expr.op.type == TokenType.OR ? IFNE : IFEQ, end);
+        code.op(POP);
+        compile(expr.right);
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        // The tree-walker's trampoline makes a tail call once the hot function returns.
+        boolean tail = hot && expr.tail;
+        if (tail) code.aload(INTERPRETER_SLOT);
+        compile(expr.callee);
+        code.iconst(expr.args.size());
+        token(expr.lastParen);
+        runtime("callable", method(CALLABLE_D, OBJECT_D, "I", TOKEN_D));
+        if (hot && !tail) code.aload(INTERPRETER_SLOT);
+        code.iconst(expr.args.size());
+        code.type(ANEWARRAY, OBJECT);
+        for (int i = 0; i < expr.args.size(); i++) {
+            code.op(DUP);
+            code.iconst(i);
+            compile(expr.args.get(i));
+            code.op(AASTORE);
+        }
+        if (!hot) {
+            code.invoke(INVOKEINTERFACE, "com/Jlox/LoxCallable", "call", method(OBJECT_D, ARGS_D));
+        } else {
+            code.invoke(INVOKESTATIC, "java/util/Arrays", "asList", method(LIST_D, ARGS_D));
+            if (tail) {
+                code.invoke(
+                        INVOKEVIRTUAL, INTERPRETER, "tailCall", method(OBJECT_D, CALLABLE_D, LIST_D));
+            } else {
+                code.invoke(
+                        INVOKEINTERFACE,
+                        "com/Jlox/LoxCallable",
+                        "call",
+                        method(OBJECT_D, "L" + INTERPRETER + ";", LIST_D));
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.obj);
+        token(expr.name);
+        runtime("get", method(OBJECT_D, OBJECT_D, TOKEN_D));
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.obj);
+        token(expr.name);
+        runtime("instance", method(INSTANCE_D, OBJECT_D, TOKEN_D));
+        compile(expr.value);
+        token(expr.name);
+        runtime("set", method(OBJECT_D, INSTANCE_D, OBJECT_D, TOKEN_D));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        load("this", expr.keyword, expr.access, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        load("super", expr.keyword, expr.access, expr.slot);
+        load("this", expr.keyword, expr.thisAccess, expr.thisSlot);
+        token(expr.method);
+        runtime("getSuper", method(OBJECT_D, OBJECT_D, OBJECT_D, TOKEN_D));
+        return null;
+    }
+
+    /* Generates the class of a function and returns what is needed to instantiate it. */
+    private Function function(Stmt.Function stmt, FunctionKind kind, String name) {
+        String className = className(name);
+        ClassWriter writer = new ClassWriter(className, FUNCTION, sourceFile);
+        ClassScope owner = new ClassScope(writer);
+        FunctionScope scope =
+                new FunctionScope(
+                        current, kind, owner, writer.method(ACC_PUBLIC, "invoke", INVOKE_D, 3));
+        enter(scope);
+        beginScope();
+        boolean isMethod = kind == FunctionKind.METHOD || kind == FunctionKind.INITIALIZER;
+        boolean boxReceiver = isMethod && captured.contains(stmt);
+        scope.locals.add(new Local(isMethod ? "this" : "", 0, RECEIVER_SLOT, boxReceiver));
+        if (boxReceiver) {
+            code.aload(RECEIVER_SLOT);
+            box(RECEIVER_SLOT);
+        }
+        scope.nextSlot = ARGS_SLOT + 1;
+        for (int i = 0; i < stmt.params.size(); i++) {
+            Token param = stmt.params.get(i);
+            code.aload(ARGS_SLOT);
+            code.iconst(i);
+            code.op(AALOAD);
+            define(declare(param.lexeme, param), param.lexeme);
+        }
+        for (Stmt inner : stmt.body) compile(inner);
+        if (kind == FunctionKind.INITIALIZER) load("this", stmt.name);
+        else code.op(ACONST_NULL);
+        code.op(ARETURN);
+        code.end();
+        leave();
+
+        Code init = writer.method(0, "<init>", method("V", CELLS_D), 2);
+        init.aload(0);
+        init.ldc(stmt.name.lexeme);
+        init.iconst(stmt.params.size());
+        init.aload(1);
+        init.invoke(INVOKESPECIAL, FUNCTION, "<init>", "(Ljava/lang/String;I" + CELLS_D + ")V");
+        init.op(RETURN);
+        init.end();
+        Code clinit = staticFields(owner);
+        clinit.op(RETURN);
+        clinit.end();
+        finish(owner);
+        return new Function(className, scope.upvalues);
+    }
+
+    /* Instantiates a function class with the cells it captures from the current function. */
+    private void closure(Function function) {
+        code.type(NEW, function.className());
+        code.op(DUP);
+        List<Upvalue> upvalues = function.upvalues();
+        if (upvalues.isEmpty()) {
+            code.op(ACONST_NULL);
+        } else {
+            code.iconst(upvalues.size());
+            code.type(ANEWARRAY, CELL);
+            for (int i = 0; i < upvalues.size(); i++) {
+                code.op(DUP);
+                code.iconst(i);
+                Upvalue upvalue = upvalues.get(i);
+                if (upvalue.isLocal()) {
+                    code.aload(upvalue.index());
+                } else {
+                    loadUpvalues();
+                    code.iconst(upvalue.index());
+                    code.op(AALOAD);
+                }
+                code.op(AASTORE);
+            }
+        }
+        code.invoke(INVOKESPECIAL, function.className(), "<init>", method("V", CELLS_D));
+    }
+
+    private void loadUpvalues() {
+        code.aload(0);
+        code.field(GETFIELD, FUNCTION, "upvalues", CELLS_D);
+    }
+
+    private void token(Token token) {
+        Map<Token, Integer> tokens = current.owner.tokens;
+        Integer index = tokens.get(token);
+        if (index == null) {
+            index = tokens.size();
+            tokens.put(token, index);
+        }
+        code.line(token.line + 1);
+        code.field(GETSTATIC, current.owner.writer.name, "$t" + index, TOKEN_D);
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.getLast().depth() > current.scopeDepth)
+            current.nextSlot = locals.removeLast().slot();
+    }
+
+    /* Declares a variable, returning its local or null for a global. */
+    private Local declare(String name, Object key) {
+        if (current.scopeDepth == 0) {
+            globals.add(name);
+            return null;
+        }
+        Local local =
+                new Local(name, current.scopeDepth, current.nextSlot++, captured.contains(key));
+        current.locals.add(local);
+        return local;
+    }
+
+    /* Stores the value on top of the stack as the initial value of a declared variable. */
+    private void define(Local local, String name) {
+        if (local == null) {
+            code.field(PUTSTATIC, mainClass, name, OBJECT_D);
+        } else if (local.captured()) {
+            box(local.slot());
+        } else {
+            code.astore(local.slot());
+        }
+    }
+
+    /* Wraps the value on top of the stack in a Cell stored in the given JVM local. */
+    private void box(int slot) {
+        code.type(NEW, CELL);
+        code.op(DUP_X1);
+        code.op(SWAP);
+        code.invoke(INVOKESPECIAL, CELL, "<init>", method("V", OBJECT_D));
+        code.astore(slot);
+    }
+
+    private void load(String name, Token where) {
+        load(name, where, -1, 0);
+    }
+
+    /* The access and slot are the Resolver's, only used by hot functions for non-locals. */
+    private void load(String name, Token where, int access, int slot) {
+        Local local = resolveLocal(current, name);
+        if (local != null) {
+            code.aload(local.slot());
+            if (local.captured()) code.field(GETFIELD, CELL, "value", OBJECT_D);
+            return;
+        }
+        if (hot) {
+            if (access == Environment.GLOBAL) loadGlobalCell(name, where);
+            else loadHotUpvalue(access, slot);
+            code.field(GETFIELD, TREE_CELL, "value", OBJECT_D);
+            return;
+        }
+        int upvalue = resolveUpvalue(current, name);
+        if (upvalue != -1) {
+            loadUpvalues();
+            code.iconst(upvalue);
+            code.op(AALOAD);
+            code.field(GETFIELD, CELL, "value", OBJECT_D);
+            return;
+        }
+        globals.add(name);
+        code.field(GETSTATIC, mainClass, name, OBJECT_D);
+        token(where);
+        runtime("global", method(OBJECT_D, OBJECT_D, TOKEN_D));
+    }
+
+    /* Assigns the value on top of the stack to an existing variable. */
+    private void store(String name, Token where, int access, int slot) {
+        Local local = resolveLocal(current, name);
+        if (local != null) {
+            if (local.captured()) {
+                code.aload(local.slot());
+                code.op(SWAP);
+                code.field(PUTFIELD, CELL, "value", OBJECT_D);
+            } else {
+                code.astore(local.slot());
+            }
+            return;
+        }
+        if (hot) {
+            if (access == Environment.GLOBAL) loadGlobalCell(name, where);
+            else loadHotUpvalue(access, slot);
+            code.op(SWAP);
+            code.field(PUTFIELD, TREE_CELL, "value", OBJECT_D);
+            return;
+        }
+        int upvalue = resolveUpvalue(current, name);
+        if (upvalue != -1) {
+            loadUpvalues();
+            code.iconst(upvalue);
+            code.op(AALOAD);
+            code.op(SWAP);
+            code.field(PUTFIELD, CELL, "value", OBJECT_D);
+            return;
+        }
+        globals.add(name);
+        code.field(GETSTATIC, mainClass, name, OBJECT_D);
+        token(where);
+        runtime("global", method(OBJECT_D, OBJECT_D, TOKEN_D));
+        code.op(POP);
+        code.field(PUTSTATIC, mainClass, name, OBJECT_D);
+    }
+
+    /* Loads the Cell of an upvalue of the hot function, its only non-locals besides globals. */
+    private void loadHotUpvalue(int access, int slot) {
+        if (access != Environment.UPVALUE)
+            throw new IllegalStateException("A hot function has a local in a Cell.");
+        code.aload(UPVALUES_SLOT);
+        code.iconst(slot);
+        code.op(AALOAD);
+    }
+
+    /*
+     * Loads the Cell of a global of the tree-walker, looking it up by name only until it is found.
+     * A global keeps its Cell when it is redefined, so the one cached in the class stays valid.
+     */
+    private void loadGlobalCell(String name, Token where) {
+        Map<String, Integer> cells = current.owner.globalCells;
+        String field = "$g" + cells.computeIfAbsent(name, key -> cells.size());
+        Label cached = code.label();
+        code.field(GETSTATIC, current.owner.writer.name, field, TREE_CELL_D);
+        code.op(DUP);
+        code.jump(IFNONNULL, cached);
+        code.op(POP);
+        code.aload(INTERPRETER_SLOT);
+        code.field(GETFIELD, INTERPRETER, "globals", ENVIRONMENT_D);
+        token(where);
+        code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "global", method(TREE_CELL_D, TOKEN_D));
+        code.op(DUP);
+        code.field(PUTSTATIC, current.owner.writer.name, field, TREE_CELL_D);
+        code.place(cached);
+    }
+
+    private static Local resolveLocal(FunctionScope scope, String name) {
+        for (int i = scope.locals.size() - 1; i >= 0; i--) {
+            if (scope.locals.get(i).name().equals(name)) return scope.locals.get(i);
+        }
+        return null;
+    }
+
+    private static int resolveUpvalue(FunctionScope scope, String name) {
+        if (scope.enclosing == null) return -1;
+        Local local = resolveLocal(scope.enclosing, name);
+        if (local != null) return addUpvalue(scope, new Upvalue(local.slot(), true));
+        int upvalue = resolveUpvalue(scope.enclosing, name);
+        if (upvalue != -1) return addUpvalue(scope, new Upvalue(upvalue, false));
+        return -1;
+    }
+
+    private static int addUpvalue(FunctionScope scope, Upvalue upvalue) {
+        int existing = scope.upvalues.indexOf(upvalue);
+        if (existing != -1) return existing;
+        scope.upvalues.add(upvalue);
+        return scope.upvalues.size() - 1;
+    }
+}
@@ -0,0 +1,87 @@
+package com.Jlox.jvm;
+
+import com.Jlox.LoxCallable;
+import com.Jlox.LoxClass;
+import com.Jlox.LoxInstance;
+import com.Jlox.LoxMethod;
+import com.Jlox.RunTimeEvalError;
+import com.Jlox.Token;
+import com.Jlox.TokenType;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Helpers called from the generated classes. Each one performs its checks in the same order as
+ * the Interpreter and fails with the same RunTimeEvalError.
+ */
+public final class LoxRuntime {
+    /* Value of the global fields that have not been defined yet. */
+    public static final Object UNDEFINED = new Object();
+
+    private LoxRuntime() {}
+
+    public static Token token(String lexeme, int line) {
+        return new Token(TokenType.IDENTIFIER, lexeme, null, line);
+    }
+
+    public static Object global(Object value, Token name) {
+        if (value == UNDEFINED)
+            throw new RunTimeEvalError(name, "Undefined variable '" + name.lexeme + "'.");
+        return value;
+    }
+
+    /* Checks a callee before its arguments are evaluated. */
+    public static LoxCallable callable(Object callee, int argCount, Token paren) {
+        if (!(callee instanceof LoxCallable function))
+            throw new RunTimeEvalError(paren, "Can only call functions and classes.");
+        if (function.arity() != argCount)
+            throw new RunTimeEvalError(
+                    paren,
+                    "Expected " + function.arity() + " arguments but got " + argCount + ".");
+        return function;
+    }
+
+    public static Object get(Object obj, Token name) {
+        if (obj instanceof LoxInstance instance) return instance.get(name);
+        throw new RunTimeEvalError(name, "Only instances have properties.");
+    }
+
+    /* Checks the object of a property assignment before its value is evaluated. */
+    public static LoxInstance instance(Object obj, Token name) {
+        if (obj instanceof LoxInstance instance) return instance;
+        throw new RunTimeEvalError(name, "Only instances have fields.");
+    }
+
+    public static Object set(LoxInstance instance, Object value, Token name) {
+        instance.set(name, value);
+        return value;
+    }
+
+    public static Object getSuper(Object superClass, Object receiver, Token method) {
+        LoxMethod function = ((LoxClass) superClass).findMethod(method.lexeme);
+        if (function == null)
+            throw new RunTimeEvalError(
+                    method, "Undefined property '" + method.lexeme + "'.");
+        return function.bind((LoxInstance) receiver);
+    }
+
+    public static LoxClass superClass(Object value, Token name) {
+        if (value instanceof LoxClass superClass) return superClass;
+        throw new RunTimeEvalError(name, "Superclass must be a class.");
+    }
+
+    public static LoxClass makeClass(
+            String name, LoxClass superClass, CompiledFunction[] methods) {
+        Map<String, LoxMethod> table = new HashMap<>();
+        for (CompiledFunction method : methods) table.put(method.name(), method);
+        return new LoxClass(name, superClass, table);
+    }
+
+    /* Reports an error that escaped the script and exits like the interpreter does. */
+    public static void fail(Throwable err) {
+        String message = err instanceof StackOverflowError ? "Stack overflow." : err.getMessage();
+        System.err.println(message);
+        System.exit(70);
+    }
+}
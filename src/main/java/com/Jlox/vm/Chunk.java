@@ -0,0 +1,68 @@
+package com.Jlox.vm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+final class Chunk {
+    static final int MAX_CONSTANTS = 1 << 16;
+
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+
+    Object[] constants = new Object[16];
+    int constantCount = 0;
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    void write(byte b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = b;
+        lines[count] = line;
+        count++;
+    }
+
+    void writeShort(int value, int line) {
+        write((byte) (value >> 8), line);
+        write((byte) value, line);
+    }
+
+    void writeInt(int value, int line) {
+        writeShort(value >>> 16, line);
+        writeShort(value & 0xffff, line);
+    }
+
+    void patchInt(int offset, int value) {
+        code[offset] = (byte) (value >> 24);
+        code[offset + 1] = (byte) (value >> 16);
+        code[offset + 2] = (byte) (value >> 8);
+        code[offset + 3] = (byte) value;
+    }
+
+    int readShort(int offset) {
+        return ((code[offset] & 0xff) << 8) | (code[offset + 1] & 0xff);
+    }
+
+    int readInt(int offset) {
+        return (readShort(offset) << 16) | readShort(offset + 2);
+    }
+
+    /* Returns the index of value in the constant pool, or -1 if the pool is full. */
+    int addConstant(Object value) {
+        // Functions are compared by identity, everything else can share a slot.
+        boolean shared = !(value instanceof ObjFunction);
+        if (shared) {
+            Integer index = constantIndex.get(value);
+            if (index != null) return index;
+        }
+        if (constantCount == MAX_CONSTANTS) return -1;
+        if (constantCount == constants.length)
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        constants[constantCount] = value;
+        if (shared) constantIndex.put(value, constantCount);
+        return constantCount++;
+    }
+}
@@ -0,0 +1,556 @@
+package com.Jlox.vm;
+
+import com.Jlox.Expr;
+import com.Jlox.Jlox;
+import com.Jlox.Stmt;
+import com.Jlox.Token;
+import com.Jlox.TokenType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Compiles a resolved syntax tree into bytecode. Scoping errors have already been reported by the
+ * Resolver, so the compiler only has to check the limits of the bytecode format.
+ */
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAX_LOCALS = 1 << 16;
+    private static final int MAX_UPVALUES = 1 << 16;
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        METHOD,
+        INITIALIZER
+    }
+
+    private static class Local {
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private record Upvalue(int index, boolean isLocal) {}
+
+    private static class Loop {
+        final Loop enclosing;
+        final Token name;
+        final int scopeDepth;
+        final List<Integer> breakJumps = new ArrayList<>();
+
+        Loop(Loop enclosing, Token name, int scopeDepth) {
+            this.enclosing = enclosing;
+            this.name = name;
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final ObjFunction function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        Loop loop = null;
+
+        FunctionState(FunctionState enclosing, ObjFunction function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+            // Slot zero holds the callee, or the receiver inside methods.
+            boolean isMethod = type == FunctionType.METHOD || type == FunctionType.INITIALIZER;
+            locals.add(new Local(isMethod ? "this" : "", 0));
+        }
+    }
+
+    private FunctionState current;
+    private int line = 0;
+    private boolean hadError = false;
+
+    private Compiler() {
+        current = new FunctionState(null, new ObjFunction(null), FunctionType.SCRIPT);
+    }
+
+    static ObjFunction compileScript(List<Stmt> stmts) {
+        Compiler compiler = new Compiler();
+        for (Stmt stmt : stmts) compiler.compile(stmt);
+        ObjFunction script = compiler.endFunction();
+        return compiler.hadError ? null : script;
+    }
+
+    static ObjFunction compileExpression(Expr expr) {
+        Compiler compiler = new Compiler();
+        compiler.compile(expr);
+        compiler.emit(OpCode.PRINT);
+        ObjFunction script = compiler.endFunction();
+        return compiler.hadError ? null : script;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expr);
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expr);
+        emit(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) emit(OpCode.NIL);
+        else compile(stmt.initializer);
+        line = stmt.name.line;
+        // The initializer is left on the stack, in the slot of the new local.
+        if (current.scopeDepth > 0) addLocal(stmt.name);
+        else emitShort(OpCode.DEFINE_GLOBAL, identifier(stmt.name));
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt inner : stmt.stmts) compile(inner);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(stmt.thenBranch);
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        emit(OpCode.POP);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = chunk().count;
+        compile(stmt.condition);
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        Loop loop = new Loop(current.loop, stmt.name, current.scopeDepth);
+        current.loop = loop;
+        compile(stmt.body);
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        emit(OpCode.POP);
+        for (int jump : loop.breakJumps) patchJump(jump);
+        current.loop = loop.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        beginScope();
+        if (stmt.initializer != null) compile(stmt.initializer);
+        int loopStart = chunk().count;
+        compile(stmt.condition);
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        Loop loop = new Loop(current.loop, stmt.name, current.scopeDepth);
+        current.loop = loop;
+        compile(stmt.body);
+        current.loop = loop.enclosing;
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            emit(OpCode.POP);
+        }
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        emit(OpCode.POP);
+        for (int jump : loop.breakJumps) patchJump(jump);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        line = stmt.keyword.line;
+        Loop loop = current.loop;
+        if (stmt.name != null) {
+            while (loop != null
+                    && (loop.name == null || !loop.name.lexeme.equals(stmt.name.lexeme)))
+                loop = loop.enclosing;
+        }
+        if (loop == null) {
+            if (stmt.name == null)
+                error(stmt.keyword, "Can't break outside while- or for- loop.");
+            else error(stmt.name, "No enclosing loop named '" + stmt.name.lexeme + "'.");
+            return null;
+        }
+        // Leave the scopes of the loop body without forgetting their locals, the code after the
+        // break still sees them. A closure created later in the body may capture any of them.
+        List<Local> locals = current.locals;
+        for (int i = locals.size() - 1; i >= 0 && locals.get(i).depth > loop.scopeDepth; i--)
+            emit(OpCode.CLOSE_UPVALUE);
+        loop.breakJumps.add(emitJump(OpCode.JUMP));
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        // Declared before the body is compiled so that the function can refer to itself.
+        if (current.scopeDepth > 0) addLocal(stmt.name);
+        function(stmt, FunctionType.FUNCTION);
+        if (current.scopeDepth == 0) emitShort(OpCode.DEFINE_GLOBAL, identifier(stmt.name));
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (current.type == FunctionType.INITIALIZER) emitShort(OpCode.GET_LOCAL, 0);
+        else if (stmt.value == null) emit(OpCode.NIL);
+        else compile(stmt.value);
+        emit(OpCode.RETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        int nameConstant = identifier(stmt.name);
+        if (current.scopeDepth > 0) addLocal(stmt.name);
+        emitShort(OpCode.CLASS, nameConstant);
+        if (current.scopeDepth == 0) emitShort(OpCode.DEFINE_GLOBAL, nameConstant);
+
+        if (stmt.superClass != null) {
+            compile(stmt.superClass);
+            beginScope();
+            addLocal("super", stmt.superClass.name);
+            getVariable(stmt.name.lexeme, stmt.name);
+            emit(OpCode.INHERIT);
+        }
+
+        getVariable(stmt.name.lexeme, stmt.name);
+        for (Stmt.Function method : stmt.methods) {
+            boolean isInitializer = method.name.lexeme.equals("init");
+            function(method, isInitializer ? FunctionType.INITIALIZER : FunctionType.METHOD);
+            line = method.name.line;
+            emitShort(OpCode.METHOD, identifier(method.name));
+        }
+        emit(OpCode.POP);
+        if (stmt.superClass != null) endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        setVariable(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+        line = expr.op.line;
+        switch (expr.op.type) {
+            case PLUS -> emit(OpCode.ADD);
+            case MINUS -> emit(OpCode.SUBTRACT);
+            case STAR -> emit(OpCode.MULTIPLY);
+            case SLASH -> emit(OpCode.DIVIDE);
+            case EQUAL_EQUAL -> emit(OpCode.EQUAL);
+            case BANG_EQUAL -> emit(OpCode.NOT_EQUAL);
+            case GREATER -> emit(OpCode.GREATER);
+            case GREATER_EQUAL -> emit(OpCode.GREATER_EQUAL);
+            case LESS -> emit(OpCode.LESS);
+            case LESS_EQUAL -> emit(OpCode.LESS_EQUAL);
+            default -> error(expr.op, "Wrong binary operator.");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expr);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        switch (expr.value) {
+            case null -> emit(OpCode.NIL);
+            case Boolean b -> emit(b ? OpCode.TRUE : OpCode.FALSE);
+            default -> emitShort(OpCode.CONSTANT, makeConstant(expr.value, null));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.op.line;
+        switch (expr.op.type) {
+            case MINUS -> emit(OpCode.NEGATE);
+            case BANG -> emit(OpCode.NOT);
+            default -> error(expr.op, "Not a unary operator.");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        getVariable(expr.name.lexeme, expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        line = expr.op.line;
+        int endJump;
+        if (expr.op.type == TokenType.OR) {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+        } else {
+            endJump = emitJump(OpCode.JUMP_IF_FALSE);
+        }
+        emit(OpCode.POP);
+        compile(expr.right);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get get) {
+            compile(get.obj);
+            compileArgs(expr);
+            line = get.name.line;
+            emitShort(OpCode.INVOKE, identifier(get.name));
+            emitByte(expr.args.size());
+        } else if (expr.callee instanceof Expr.Super sup) {
+            getVariable("this", sup.keyword);
+            compileArgs(expr);
+            getVariable("super", sup.keyword);
+            line = sup.method.line;
+            emitShort(OpCode.SUPER_INVOKE, identifier(sup.method));
+            emitByte(expr.args.size());
+        } else {
+            compile(expr.callee);
+            compileArgs(expr);
+            line = expr.lastParen.line;
+            emit(OpCode.CALL);
+            emitByte(expr.args.size());
+        }
+        return null;
+    }
+
+    private void compileArgs(Expr.Call expr) {
+        for (Expr arg : expr.args) compile(arg);
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.obj);
+        line = expr.name.line;
+        emitShort(OpCode.GET_PROPERTY, identifier(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.obj);
+        compile(expr.value);
+        line = expr.name.line;
+        emitShort(OpCode.SET_PROPERTY, identifier(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        getVariable("this", expr.keyword);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        getVariable("this", expr.keyword);
+        getVariable("super", expr.keyword);
+        line = expr.method.line;
+        emitShort(OpCode.GET_SUPER, identifier(expr.method));
+        return null;
+    }
+
+    private void function(Stmt.Function stmt, FunctionType type) {
+        FunctionState state = new FunctionState(current, new ObjFunction(stmt.name.lexeme), type);
+        current = state;
+        beginScope();
+        state.function.arity = stmt.params.size();
+        for (Token param : stmt.params) addLocal(param);
+        for (Stmt inner : stmt.body) compile(inner);
+        // No need to end the scope, returning discards the whole frame.
+        ObjFunction function = endFunction();
+
+        line = stmt.name.line;
+        emitShort(OpCode.CLOSURE, makeConstant(function, stmt.name));
+        for (Upvalue upvalue : state.upvalues) {
+            emitByte(upvalue.isLocal() ? 1 : 0);
+            chunk().writeShort(upvalue.index(), line);
+        }
+    }
+
+    private ObjFunction endFunction() {
+        if (current.type == FunctionType.INITIALIZER) emitShort(OpCode.GET_LOCAL, 0);
+        else emit(OpCode.NIL);
+        emit(OpCode.RETURN);
+        ObjFunction function = current.function;
+        function.upvalueCount = current.upvalues.size();
+        current = current.enclosing;
+        return function;
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.getLast().depth > current.scopeDepth) {
+            emit(locals.getLast().isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+            locals.removeLast();
+        }
+    }
+
+    private void addLocal(Token name) {
+        addLocal(name.lexeme, name);
+    }
+
+    private void addLocal(String name, Token where) {
+        if (current.locals.size() == MAX_LOCALS) {
+            error(where, "Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(name, current.scopeDepth));
+    }
+
+    private void getVariable(String name, Token where) {
+        line = where.line;
+        int arg = resolveLocal(current, name);
+        if (arg != -1) emitShort(OpCode.GET_LOCAL, arg);
+        else if ((arg = resolveUpvalue(current, name, where)) != -1)
+            emitShort(OpCode.GET_UPVALUE, arg);
+        else emitShort(OpCode.GET_GLOBAL, identifier(where));
+    }
+
+    private void setVariable(Token name) {
+        line = name.line;
+        int arg = resolveLocal(current, name.lexeme);
+        if (arg != -1) emitShort(OpCode.SET_LOCAL, arg);
+        else if ((arg = resolveUpvalue(current, name.lexeme, name)) != -1)
+            emitShort(OpCode.SET_UPVALUE, arg);
+        else emitShort(OpCode.SET_GLOBAL, identifier(name));
+    }
+
+    private static int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name)) return i;
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name, Token where) {
+        if (state.enclosing == null) return -1;
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true, where);
+        }
+        int upvalue = resolveUpvalue(state.enclosing, name, where);
+        if (upvalue != -1) return addUpvalue(state, upvalue, false, where);
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal, Token where) {
+        Upvalue upvalue = new Upvalue(index, isLocal);
+        int existing = state.upvalues.indexOf(upvalue);
+        if (existing != -1) return existing;
+        if (state.upvalues.size() == MAX_UPVALUES) {
+            error(where, "Too many closure variables in function.");
+            return 0;
+        }
+        state.upvalues.add(upvalue);
+        return state.upvalues.size() - 1;
+    }
+
+    private int identifier(Token name) {
+        return makeConstant(name.lexeme, name);
+    }
+
+    private int makeConstant(Object value, Token where) {
+        int index = chunk().addConstant(value);
+        if (index == -1) {
+            error(where, "Too many constants in one chunk.");
+            return 0;
+        }
+        return index;
+    }
+
+    private Chunk chunk() {
+        return current.function.chunk;
+    }
+
+    private void emit(byte op) {
+        chunk().write(op, line);
+    }
+
+    private void emitByte(int value) {
+        chunk().write((byte) value, line);
+    }
+
+    private void emitShort(byte op, int operand) {
+        emit(op);
+        chunk().writeShort(operand, line);
+    }
+
+    private int emitJump(byte op) {
+        emit(op);
+        chunk().writeInt(0, line);
+        return chunk().count - 4;
+    }
+
+    private void patchJump(int offset) {
+        chunk().patchInt(offset, chunk().count - (offset + 4));
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(OpCode.LOOP);
+        chunk().writeInt(chunk().count + 4 - loopStart, line);
+    }
+
+    private void error(Token token, String msg) {
+        hadError = true;
+        if (token != null) Jlox.error(token, msg);
+        else Jlox.error(line, msg);
+    }
+}
@@ -0,0 +1,91 @@
+package com.Jlox.vm;
+
+final class Disassembler {
+    private Disassembler() {}
+
+    static void disassemble(ObjFunction function) {
+        Chunk chunk = function.chunk;
+        System.out.println("== " + function + " ==");
+        for (int offset = 0; offset < chunk.count; ) {
+            offset = instruction(chunk, offset);
+        }
+        for (int i = 0; i < chunk.constantCount; i++) {
+            if (chunk.constants[i] instanceof ObjFunction inner) disassemble(inner);
+        }
+    }
+
+    private static int instruction(Chunk chunk, int offset) {
+        StringBuilder out = new StringBuilder(String.format("%04d ", offset));
+        if (offset > 0 && chunk.lines[offset] == chunk.lines[offset - 1]) out.append("   | ");
+        else out.append(String.format("%4d ", chunk.lines[offset] + 1));
+
+        byte op = chunk.code[offset];
+        out.append(String.format("%-16s", OpCode.name(op)));
+        int next =
+                switch (op) {
+                    case OpCode.CONSTANT,
+                            OpCode.GET_GLOBAL,
+                            OpCode.DEFINE_GLOBAL,
+                            OpCode.SET_GLOBAL,
+                            OpCode.GET_PROPERTY,
+                            OpCode.SET_PROPERTY,
+                            OpCode.GET_SUPER,
+                            OpCode.CLASS,
+                            OpCode.METHOD -> {
+                        int index = chunk.readShort(offset + 1);
+                        out.append(String.format("%5d '%s'", index, chunk.constants[index]));
+                        yield offset + 3;
+                    }
+                    case OpCode.GET_LOCAL,
+                            OpCode.SET_LOCAL,
+                            OpCode.GET_UPVALUE,
+                            OpCode.SET_UPVALUE -> {
+                        out.append(String.format("%5d", chunk.readShort(offset + 1)));
+                        yield offset + 3;
+                    }
+                    case OpCode.CALL -> {
+                        out.append(String.format("%5d", chunk.code[offset + 1] & 0xff));
+                        yield offset + 2;
+                    }
+                    case OpCode.INVOKE, OpCode.SUPER_INVOKE -> {
+                        int index = chunk.readShort(offset + 1);
+                        int argCount = chunk.code[offset + 3] & 0xff;
+                        out.append(
+                                String.format(
+                                        "(%d args) %5d '%s'",
+                                        argCount, index, chunk.constants[index]));
+                        yield offset + 4;
+                    }
+                    case OpCode.JUMP, OpCode.JUMP_IF_FALSE -> {
+                        int target = offset + 5 + chunk.readInt(offset + 1);
+                        out.append(String.format("%5d -> %d", offset, target));
+                        yield offset + 5;
+                    }
+                    case OpCode.LOOP -> {
+                        int target = offset + 5 - chunk.readInt(offset + 1);
+                        out.append(String.format("%5d -> %d", offset, target));
+                        yield offset + 5;
+                    }
+                    case OpCode.CLOSURE -> {
+                        int index = chunk.readShort(offset + 1);
+                        ObjFunction function = (ObjFunction) chunk.constants[index];
+                        out.append(String.format("%5d %s", index, function));
+                        int current = offset + 3;
+                        for (int i = 0; i < function.upvalueCount; i++) {
+                            boolean isLocal = chunk.code[current] == 1;
+                            out.append(
+                                    String.format(
+                                            "%n%04d    |                     %s %d",
+                                            current,
+                                            isLocal ? "local" : "upvalue",
+                                            chunk.readShort(current + 1)));
+                            current += 3;
+                        }
+                        yield current;
+                    }
+                    default -> offset + 1;
+                };
+        System.out.println(out);
+        return next;
+    }
+}
@@ -0,0 +1,17 @@
+package com.Jlox.vm;
+
+final class ObjFunction {
+    final String name;
+    final Chunk chunk = new Chunk();
+    int arity = 0;
+    int upvalueCount = 0;
+
+    ObjFunction(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return name == null ? "<script>" : "<fn " + name + ">";
+    }
+}
@@ -0,0 +1,17 @@
+package com.Jlox.vm;
+
+/*
+ * A variable captured by a closure. While open it refers to a slot of the VM stack, once the slot
+ * goes out of scope the value is moved into the upvalue itself.
+ */
+final class ObjUpvalue {
+    int slot;
+    Object closed;
+    boolean isClosed = false;
+    ObjUpvalue next;
+
+    ObjUpvalue(int slot, ObjUpvalue next) {
+        this.slot = slot;
+        this.next = next;
+    }
+}
@@ -0,0 +1,421 @@
+package com.Jlox.vm;
+
+import com.Jlox.Expr;
+import com.Jlox.Jlox;
+import com.Jlox.LoxCallable;
+import com.Jlox.NativeFunctions.Clock;
+import com.Jlox.Operators;
+import com.Jlox.RunTimeEvalError;
+import com.Jlox.Stmt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/*
+ * Stack based virtual machine running the bytecode produced by the Compiler. Lox calls push a
+ * CallFrame instead of recursing on the Java stack. The frames and the value stack live on the
+ * heap and grow as needed, so the depth of recursion is only bounded by maxFrames.
+ */
+public class VM {
+    private static final int INITIAL_FRAMES = 64;
+    private static final int INITIAL_STACK = 1024;
+
+    /* Number of nested calls after which a script fails with a stack overflow. */
+    private static int maxFrames = 1 << 20;
+
+    private static class CallFrame {
+        ObjClosure closure;
+        int ip;
+        int base;
+    }
+
+    private Object[] stack = new Object[INITIAL_STACK];
+    private int sp = 0;
+    private CallFrame[] frames = new CallFrame[INITIAL_FRAMES];
+    private int frameCount = 0;
+    private final Map<String, Object> globals = new HashMap<>();
+    private ObjUpvalue openUpvalues = null;
+
+    public VM() {
+        for (int i = 0; i < INITIAL_FRAMES; i++) frames[i] = new CallFrame();
+        globals.put("clock", new Clock());
+    }
+
+    public static void setMaxFrames(int frames) {
+        maxFrames = frames;
+    }
+
+    public void interpret(List<Stmt> stmts) {
+        ObjFunction script = Compiler.compileScript(stmts);
+        if (script != null) run(script);
+    }
+
+    public void interpret(Expr expr) {
+        ObjFunction script = Compiler.compileExpression(expr);
+        if (script != null) run(script);
+    }
+
+    private void run(ObjFunction script) {
+        if (Jlox.isDebugMode()) Disassembler.disassemble(script);
+        ObjClosure closure = new ObjClosure(script);
+        push(closure);
+        call(closure, 0);
+        try {
+            execute();
+        } catch (RunTimeEvalError err) {
+            // Drops what the failed script left behind, and shrinks the stacks of a deep one.
+            stack = new Object[INITIAL_STACK];
+            sp = 0;
+            frames = Arrays.copyOf(frames, INITIAL_FRAMES);
+            frameCount = 0;
+            openUpvalues = null;
+            Jlox.runTimeError(err);
+        }
+    }
+
+    private void execute() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        int ip = frame.ip;
+
+        while (true) {
+            byte instruction = code[ip++];
+            switch (instruction) {
+                case OpCode.CONSTANT -> {
+                    push(constants[readShort(code, ip)]);
+                    ip += 2;
+                }
+                case OpCode.NIL -> push(null);
+                case OpCode.TRUE -> push(true);
+                case OpCode.FALSE -> push(false);
+                case OpCode.POP -> sp--;
+                case OpCode.GET_LOCAL -> {
+                    push(stack[frame.base + readShort(code, ip)]);
+                    ip += 2;
+                }
+                case OpCode.SET_LOCAL -> {
+                    stack[frame.base + readShort(code, ip)] = peek(0);
+                    ip += 2;
+                }
+                case OpCode.GET_GLOBAL -> {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    Object value = globals.get(name);
+                    if (value == null && !globals.containsKey(name))
+                        throw error("Undefined variable '" + name + "'.");
+                    push(value);
+                }
+                case OpCode.DEFINE_GLOBAL -> {
+                    globals.put((String) constants[readShort(code, ip)], pop());
+                    ip += 2;
+                }
+                case OpCode.SET_GLOBAL -> {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    if (!globals.containsKey(name))
+                        throw error("Undefined variable '" + name + "'.");
+                    globals.put(name, peek(0));
+                }
+                case OpCode.GET_UPVALUE -> {
+                    ObjUpvalue upvalue = frame.closure.upvalues[readShort(code, ip)];
+                    ip += 2;
+                    push(upvalue.isClosed ? upvalue.closed : stack[upvalue.slot]);
+                }
+                case OpCode.SET_UPVALUE -> {
+                    ObjUpvalue upvalue = frame.closure.upvalues[readShort(code, ip)];
+                    ip += 2;
+                    if (upvalue.isClosed) upvalue.closed = peek(0);
+                    else stack[upvalue.slot] = peek(0);
+                }
+                case OpCode.GET_PROPERTY -> {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    if (!(peek(0) instanceof ObjInstance instance))
+                        throw error("Only instances have properties.");
+                    Object value = instance.fields.get(name);
+                    if (value != null || instance.fields.containsKey(name)) {
+                        stack[sp - 1] = value;
+                    } else {
+                        stack[sp - 1] = bindMethod(instance, instance.klass, name);
+                    }
+                }
+                case OpCode.SET_PROPERTY -> {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    if (!(peek(1) instanceof ObjInstance instance))
+                        throw error("Only instances have fields.");
+                    Object value = pop();
+                    instance.fields.put(name, value);
+                    stack[sp - 1] = value;
+                }
+                case OpCode.GET_SUPER -> {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    ObjClass superClass = (ObjClass) pop();
+                    stack[sp - 1] = bindMethod(stack[sp - 1], superClass, name);
+                }
+                case OpCode.EQUAL -> {
+                    Object b = pop();
+                    stack[sp - 1] = Objects.equals(stack[sp - 1], b);
+                }
+                case OpCode.NOT_EQUAL -> {
+                    Object b = pop();
+                    stack[sp - 1] = !Objects.equals(stack[sp - 1], b);
+                }
+                case OpCode.GREATER -> {
+                    Object b = pop();
+                    stack[sp - 1] = Operators.greater(stack[sp - 1], b, null);
+                }
+                case OpCode.GREATER_EQUAL -> {
+                    Object b = pop();
+                    stack[sp - 1] = Operators.greaterEqual(stack[sp - 1], b, null);
+                }
+                case OpCode.LESS -> {
+                    Object b = pop();
+                    stack[sp - 1] = Operators.less(stack[sp - 1], b, null);
+                }
+                case OpCode.LESS_EQUAL -> {
+                    Object b = pop();
+                    stack[sp - 1] = Operators.lessEqual(stack[sp - 1], b, null);
+                }
+                case OpCode.ADD -> {
+                    Object b = pop();
+                    stack[sp - 1] = Operators.add(stack[sp - 1], b, null);
+                }
+                case OpCode.SUBTRACT -> {
+                    Object b = pop();
+                    stack[sp - 1] = Operators.subtract(stack[sp - 1], b, null);
+                }
+                case OpCode.MULTIPLY -> {
+                    Object b = pop();
+                    stack[sp - 1] = Operators.multiply(stack[sp - 1], b, null);
+                }
+                case OpCode.DIVIDE -> {
+                    Object b = pop();
+                    stack[sp - 1] = Operators.divide(stack[sp - 1], b, null);
+                }
+                case OpCode.NOT -> stack[sp - 1] = !Operators.truthy(stack[sp - 1]);
+                case OpCode.NEGATE -> stack[sp - 1] = Operators.negate(stack[sp - 1], null);
+                case OpCode.PRINT -> System.out.println(Operators.stringify(pop()));
+                case OpCode.JUMP -> ip += readInt(code, ip) + 4;
+                case OpCode.JUMP_IF_FALSE -> {
+                    if (Operators.truthy(peek(0))) ip += 4;
+                    else ip += readInt(code, ip) + 4;
+                }
+                case OpCode.LOOP -> ip -= readInt(code, ip) - 4;
+                case OpCode.CALL -> {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    callValue(peek(argCount), argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                }
+                case OpCode.INVOKE -> {
+                    String name = (String) constants[readShort(code, ip)];
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    invoke(name, argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                }
+                case OpCode.SUPER_INVOKE -> {
+                    String name = (String) constants[readShort(code, ip)];
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    ObjClass superClass = (ObjClass) pop();
+                    invokeFromClass(superClass, name, argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                }
+                case OpCode.CLOSURE -> {
+                    ObjFunction function = (ObjFunction) constants[readShort(code, ip)];
+                    ip += 2;
+                    ObjClosure closure = new ObjClosure(function);
+                    push(closure);
+                    for (int i = 0; i < closure.upvalues.length; i++) {
+                        boolean isLocal = code[ip] == 1;
+                        int index = readShort(code, ip + 1);
+                        ip += 3;
+                        closure.upvalues[i] =
+                                isLocal
+                                        ? captureUpvalue(frame.base + index)
+                                        : frame.closure.upvalues[index];
+                    }
+                }
+                case OpCode.CLOSE_UPVALUE -> {
+                    closeUpvalues(sp - 1);
+                    sp--;
+                }
+                case OpCode.RETURN -> {
+                    Object result = pop();
+                    closeUpvalues(frame.base);
+                    frameCount--;
+                    if (frameCount == 0) {
+                        sp = 0;
+                        return;
+                    }
+                    for (int i = frame.base; i < sp; i++) stack[i] = null;
+                    sp = frame.base;
+                    push(result);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                }
+                case OpCode.CLASS -> {
+                    push(new ObjClass((String) constants[readShort(code, ip)]));
+                    ip += 2;
+                }
+                case OpCode.INHERIT -> {
+                    if (!(peek(1) instanceof ObjClass superClass))
+                        throw error("Superclass must be a class.");
+                    ObjClass subClass = (ObjClass) peek(0);
+                    subClass.methods.putAll(superClass.methods);
+                    subClass.initializer = superClass.initializer;
+                    sp--;
+                }
+                case OpCode.METHOD -> {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    ObjClosure method = (ObjClosure) peek(0);
+                    ObjClass klass = (ObjClass) peek(1);
+                    klass.methods.put(name, method);
+                    if (name.equals("init")) klass.initializer = method;
+                    sp--;
+                }
+                default -> throw error("Unknown opcode " + instruction + ".");
+            }
+        }
+    }
+
+    private void callValue(Object callee, int argCount) {
+        switch (callee) {
+            case ObjClosure closure -> call(closure, argCount);
+            case ObjBoundMethod bound -> {
+                stack[sp - argCount - 1] = bound.receiver;
+                call(bound.method, argCount);
+            }
+            case ObjClass klass -> {
+                stack[sp - argCount - 1] = new ObjInstance(klass);
+                if (klass.initializer != null) call(klass.initializer, argCount);
+                else if (argCount != 0) throw arityError(0, argCount);
+            }
+            case LoxCallable function -> {
+                if (function.arity() != argCount) throw arityError(function.arity(), argCount);
+                List<Object> args = new ArrayList<>(argCount);
+                for (int i = sp - argCount; i < sp; i++) args.add(stack[i]);
+                Object result = function.call(null, args);
+                sp -= argCount + 1;
+                push(result);
+            }
+            case null, default -> throw error("Can only call functions and classes.");
+        }
+    }
+
+    private void invoke(String name, int argCount) {
+        if (!(peek(argCount) instanceof ObjInstance instance))
+            throw error("Only instances have properties.");
+        Object field = instance.fields.get(name);
+        if (field != null || instance.fields.containsKey(name)) {
+            stack[sp - argCount - 1] = field;
+            callValue(field, argCount);
+        } else {
+            invokeFromClass(instance.klass, name, argCount);
+        }
+    }
+
+    private void invokeFromClass(ObjClass klass, String name, int argCount) {
+        ObjClosure method = klass.methods.get(name);
+        if (method == null) throw error("Undefined property '" + name + "'.");
+        call(method, argCount);
+    }
+
+    private ObjBoundMethod bindMethod(Object receiver, ObjClass klass, String name) {
+        ObjClosure method = klass.methods.get(name);
+        if (method == null) throw error("Undefined property '" + name + "'.");
+        return new ObjBoundMethod(receiver, method);
+    }
+
+    private void call(ObjClosure closure, int argCount) {
+        if (argCount != closure.function.arity)
+            throw arityError(closure.function.arity, argCount);
+        if (frameCount >= maxFrames) throw error("Stack overflow.");
+        if (frameCount == frames.length) growFrames();
+        CallFrame frame = frames[frameCount++];
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = sp - argCount - 1;
+    }
+
+    private void growFrames() {
+        int length = (int) Math.min((long) frameCount * 2, maxFrames);
+        frames = Arrays.copyOf(frames, length);
+        for (int i = frameCount; i < length; i++) frames[i] = new CallFrame();
+    }
+
+    private ObjUpvalue captureUpvalue(int slot) {
+        ObjUpvalue previous = null;
+        ObjUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+        ObjUpvalue created = new ObjUpvalue(slot, upvalue);
+        if (previous == null) openUpvalues = created;
+        else previous.next = created;
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.slot >= last) {
+            ObjUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.isClosed = true;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private static int readShort(byte[] code, int offset) {
+        return ((code[offset] & 0xff) << 8) | (code[offset + 1] & 0xff);
+    }
+
+    private static int readInt(byte[] code, int offset) {
+        return (readShort(code, offset) << 16) | readShort(code, offset + 2);
+    }
+
+    private void push(Object value) {
+        if (sp == stack.length) stack = Arrays.copyOf(stack, sp * 2);
+        stack[sp++] = value;
+    }
+
+    private Object pop() {
+        return stack[--sp];
+    }
+
+    private Object peek(int distance) {
+        return stack[sp - 1 - distance];
+    }
+
+    private RunTimeEvalError arityError(int arity, int argCount) {
+        return error("Expected " + arity + " arguments but got " + argCount + ".");
+    }
+
+    private static RunTimeEvalError error(String message) {
+        return new RunTimeEvalError(null, message);
+    }
+}
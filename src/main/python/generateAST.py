@@ -6,34 +6,34 @@ import json
 
 ASTTemplate = """package com.Jlox;
 {imports}
-abstract class {baseName} {{
+public abstract class {baseName} {{
 
     {visitorInterface}
 
-    abstract <R> R accept(Visitor<R> visitor);
+    public abstract <R> R accept(Visitor<R> visitor);
 
     {body}
 
     }}
 """
 
-visitorTemplate = """interface Visitor<R> {{
+visitorTemplate = """public interface Visitor<R> {{
         {visitorBody}
     }}
 """
 
 
 SubClassTemplate = """
-static class {className} extends {baseName} {{
+public static class {className} extends {baseName} {{
 
-    {FIELDS}
+    {FIELDS}{MUTABLE}
 
     {className}({args}) {{
         {initBody}
     }}
 
     @Override
-    <R> R accept(Visitor<R> visitor) {{
+    public <R> R accept(Visitor<R> visitor) {{
         return visitor.visit{className}{baseName}(this);
     }}
 }}
@@ -55,11 +55,16 @@ def getSubClass(baseName, sbc):
     Fields = sbc["Fields"]
     baseName = baseName
 
-    FIELDS = _nlJoin(lambda x: f"final {x[0]} {x[1]};", Fields, n_indents=1)
+    FIELDS = _nlJoin(lambda x: f"public final {x[0]} {x[1]};", Fields, n_indents=1)
+    # Mutable fields are filled in after parsing, optionally starting from an initializer.
+    MutableFields = sbc.get("MutableFields", [])
+    MUTABLE = _nlJoin(lambda x: f"public {x[0]} {x[1]}" + (f" = {x[2]};" if len(x) > 2 else ";"),
+                      MutableFields, n_indents=1)
+    MUTABLE = f"\n    {MUTABLE}" if MUTABLE else ""
     args = ", ".join([f"{x[0]} {x[1]}" for x in Fields])
     initBody = _nlJoin(lambda x: f"this.{x[1]} = {x[1]};", Fields, n_indents=2)
 
-    return SubClassTemplate.format(className=className, baseName=baseName, FIELDS=FIELDS, args=args, initBody=initBody,)
+    return SubClassTemplate.format(className=className, baseName=baseName, FIELDS=FIELDS, MUTABLE=MUTABLE, args=args, initBody=initBody,)
 
 def getImport(x):
     return f"import {x};"
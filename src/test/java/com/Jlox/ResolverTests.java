@@ -0,0 +1,44 @@
+package com.Jlox;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.*;
+
+import java.util.List;
+
+/* Tests of what the Resolver records on the nodes, kept in its package to call it directly. */
+public class ResolverTests {
+    /* Resolves the source and returns whether its first for loop is counted. */
+    private static boolean counted(String source) {
+        List<Stmt> stmts = new Parser(new LoxScanner(source)).parse();
+        new Resolver().resolve(stmts);
+        return firstFor(stmts).counted;
+    }
+
+    private static Stmt.For firstFor(List<Stmt> stmts) {
+        for (Stmt stmt : stmts) {
+            Stmt.For loop =
+                    switch (stmt) {
+                        case Stmt.For node -> node;
+                        case Stmt.Function node -> firstFor(node.body);
+                        case Stmt.Block node -> firstFor(node.stmts);
+                        default -> null;
+                    };
+            if (loop != null) return loop;
+        }
+        return null;
+    }
+
+    @Test()
+    public void CountedLoopTest() {
+        assertTrue(counted("for (var i = 0; i < 10; i = i + 1) print i;"));
+        assertTrue(counted("fun f() { for (var i = 10; i >= 0; i = i - 2) print i; }"));
+        assertTrue(counted("{ for (var i = 0; i <= 3; i = i + 1) { var j = i; j = 2; } }"));
+        assertFalse(counted("for (var i = 0; i < 10; i = i + 1) i = i + 1;"));
+        assertFalse(counted("fun f() { for (var i = 0; i < 10; i = i + 1) { i = 2 * i; } }"));
+        assertFalse(counted("for (var i = 0; i < 10; i = i + 1) { fun g() { return i; } }"));
+        assertFalse(counted("{ for (var i = 0; i < 9; i = i + 1) { fun g() { i = 1; } } }"));
+        assertFalse(counted("for (var i = 0; i < 10; i = i * 2) print i;"));
+    }
+}
@@ -1,12 +1,17 @@
 package com.Jlox.tests;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
 import com.Jlox.Jlox;
 import com.Jlox.LoxError;
 import com.Jlox.LoxScanner;
+import com.Jlox.RunTimeEvalError;
 import com.Jlox.Token;
+import com.Jlox.TokenType;
+import com.Jlox.vm.VM;
 
+import org.testng.Reporter;
 import org.testng.annotations.*;
 
 import java.io.ByteArrayOutputStream;
@@ -14,12 +19,17 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -116,6 +126,161 @@ public class Tests {
         assertEquals(actual, expected);
     }
 
+    /* Logs a measure to the TestNG report and to the standard output that setStd() replaces. */
+    private static void report(String measure) {
+        Reporter.log(measure);
+        originalStdOut.println(measure);
+    }
+
+    /*
+     * Throughput the scanner must keep, in MB of source per second. The scanner over boxed chars
+     * and substrings that this one replaced did about 30, this one about 60.
+     */
+    private static final double SCANNER_MB_PER_S = 40;
+
+    /* Reports the best throughput of the scanner, and fails below SCANNER_MB_PER_S. */
+    @Test(groups = "benchmark")
+    public void ScannerThroughputTest() {
+        StringBuilder src = new StringBuilder();
+        for (int i = 0; src.length() < 1_000_000; i++) {
+            src.append("fun f" + i + "(a, b) {\n");
+            src.append("  var x = a * 2.5 + b; // comment\n");
+            src.append("  if (x >= 10 and !false) return \"s" + i + "\";\n");
+            src.append("  while (x < 100) { x = x + 1; }\n");
+            src.append("  return this.field.method(x, nil);\n}\n");
+        }
+        String source = src.toString();
+        double best = 0;
+        for (int run = 0; run < 20; run++) {
+            long start = System.nanoTime();
+            List<Token> tokens = new LoxScanner(source).scanTokens();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            assertEquals(tokens.getLast().type, TokenType.EOF);
+            best = Math.max(best, source.length() / 1e6 / seconds);
+        }
+        report(String.format("Scanner throughput: %.1f MB/s", best));
+        assertTrue(best >= SCANNER_MB_PER_S, "Scanner throughput " + best + " MB/s");
+    }
+
+    /* Runs the source with the mode off and then on, returning the out and err of both runs. */
+    private String[] runWithAndWithout(String source, Consumer<Boolean> mode) {
+        String[] results = new String[4];
+        for (int run = 0; run < 2; run++) {
+            setStd();
+            mode.accept(run == 1);
+            try {
+                Jlox.run(source);
+            } finally {
+                mode.accept(false);
+            }
+            results[2 * run] = outContent.toString();
+            results[2 * run + 1] = errContent.toString();
+        }
+        return results;
+    }
+
+    @Test()
+    public void ParallelParseTest() {
+        StringBuilder src = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            src.append("fun f" + i + "(a) { var x = a + " + i + "; return x; }\n");
+            src.append("class C" + i + " { m() { return " + i + "; } }\n");
+        }
+        src.append("print f4999(1) + C2500().m();\n");
+        String[] results = runWithAndWithout(src.toString(), Jlox::setParallelParse);
+        assertEquals(results[2], results[0]);
+        assertEquals(results[0], "7500\n");
+
+        // A broken declaration is reported once and in order, as the sequential parser does.
+        src.insert(src.length() / 2, "fun broken( { var ; }\n");
+        results = runWithAndWithout(src.toString(), Jlox::setParallelParse);
+        assertEquals(results[3], results[1]);
+        assertTrue(!results[1].isEmpty(), "Expected a syntax error.");
+
+        // So is a character the scanner rejects after it, rather than before all syntax errors.
+        src.append("var at = 1 @ 2;\n");
+        results = runWithAndWithout(src.toString(), Jlox::setParallelParse);
+        assertEquals(results[3], results[1]);
+        assertTrue(results[1].contains("Unexpected character"), results[1]);
+    }
+
+    /* Reports how much faster parallel parsing runs a large input, failing if it is slower. */
+    @Test(groups = "benchmark")
+    public void ParallelParseBenchmarkTest() {
+        StringBuilder src = new StringBuilder();
+        for (int i = 0; i < 40000; i++) {
+            src.append("fun f" + i + "(a, b) { var x = a * " + i + " + b; return x - 1; }\n");
+            src.append("class C" + i + " { m(x) { if (x > 0) return this.m(x - 1); } }\n");
+        }
+        String source = src.toString();
+        double[] best = {Double.MAX_VALUE, Double.MAX_VALUE};
+        for (int run = 0; run < 10; run++) {
+            for (int mode = 0; mode < 2; mode++) {
+                Jlox.setParallelParse(mode == 1);
+                long start = System.nanoTime();
+                try {
+                    Jlox.run(source);
+                } finally {
+                    Jlox.setParallelParse(false);
+                }
+                best[mode] = Math.min(best[mode], (System.nanoTime() - start) / 1e9);
+            }
+        }
+        int workers = ForkJoinPool.getCommonPoolParallelism();
+        report(
+                String.format(
+                        "Parallel parse: %.3fs against %.3fs sequential, %.2fx on %d workers",
+                        best[1], best[0], best[0] / best[1], workers));
+        assertEquals(errContent.toString(), "");
+        // A single worker parses the chunks one after the other, gaining nothing.
+        if (workers > 1) assertTrue(best[1] < best[0], "Parallel parsing is not faster.");
+    }
+
+    @Test()
+    public void LazyParseTest() {
+        String src =
+                """
+                fun unused(a) { var b = a; return b * 2; }
+                fun counter() {
+                  var count = 0;
+                  fun next() { count = count + 1; return count; }
+                  return next;
+                }
+                fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }
+                class Point {
+                  init(x, y) { this.x = x; this.y = y; }
+                  sum() { return this.x + this.y; }
+                }
+                class Point3 < Point {
+                  init(x, y, z) { super.init(x, y); this.z = z; }
+                  sum() { return super.sum() + this.z; }
+                }
+                var next = counter();
+                next();
+                print next();
+                print fib(15);
+                print Point3(1, 2, 3).sum();
+                """;
+        String[] results = runWithAndWithout(src, Jlox::setLazyParse);
+        assertEquals(results[2], results[0]);
+        assertEquals(results[0], "2\n610\n6\n");
+
+        // Syntax errors in a body that is never called are still reported before running.
+        String broken = src.replace("return b * 2;", "return b * ;");
+        results = runWithAndWithout(broken, Jlox::setLazyParse);
+        assertEquals(results[3], results[1]);
+        assertEquals(results[2], "");
+
+        // Errors that only the Resolver finds in a body are reported once it is called.
+        String misused = src.replace("fun unused(a)", "fun unused(a, a)");
+        results = runWithAndWithout(misused, Jlox::setLazyParse);
+        assertTrue(!results[1].isEmpty(), "Expected a resolver error.");
+        assertEquals(results[2], "2\n610\n6\n");
+        assertEquals(results[3], "");
+        results = runWithAndWithout(misused + "unused(1, 2);\n", Jlox::setLazyParse);
+        assertTrue(results[3].startsWith(results[1]), results[3]);
+    }
+
     @DataProvider(name = "StringData")
     private String[][] StringData() {
         return new String[][] {
@@ -165,15 +330,47 @@ public class Tests {
                 .iterator();
     }
 
+    private interface FileRunner {
+        void run(String fileName) throws Exception;
+    }
+
+    @Test(dataProvider = "OfficialData")
+    public void OfficialTest(String inFileName) throws Exception {
+        checkOfficial(inFileName, Jlox::runFile);
+    }
+
     @Test(dataProvider = "OfficialData")
-    public void OfficialTest(String inFileName) throws IOException {
+    public void OfficialAotTest(String inFileName) throws Exception {
+        checkOfficial(inFileName, Tests::runCompiled);
+    }
+
+    /* Compiles the script to a jar and runs its main class in this JVM. */
+    private static void runCompiled(String inFileName) throws Exception {
+        Path jar = Files.createTempFile("jlox", ".jar");
+        try {
+            Jlox.compileFile(Paths.get(inFileName), jar);
+            try (URLClassLoader loader = new URLClassLoader(new URL[] {jar.toUri().toURL()})) {
+                loader.loadClass("Main").getMethod("run").invoke(null);
+            } catch (InvocationTargetException err) {
+                switch (err.getCause()) {
+                    case RunTimeEvalError cause -> System.err.println(cause.getMessage());
+                    case StackOverflowError cause -> System.err.println("Stack overflow.");
+                    default -> throw err;
+                }
+            }
+        } finally {
+            Files.delete(jar);
+        }
+    }
+
+    private void checkOfficial(String inFileName, FileRunner runner) throws Exception {
         String inText = readFile(inFileName);
         String expectedOut = MatchAssert(inText);
         String expectedErr = MatchErr(inText);
 
         // TODO: Check the exit code.
         try {
-            Jlox.runFile(inFileName);
+            runner.run(inFileName);
         } catch (LoxError err) {
             // if (!errTest.isEmpty()) throw err;
         } catch (VirtualMachineError ignored) {
@@ -191,6 +388,91 @@ public class Tests {
         }
     }
 
+    @Test(dataProvider = "OfficialData")
+    public void OfficialClosureTest(String inFileName) throws Exception {
+        Jlox.setEngine(Jlox.Engine.CLOSURE);
+        try {
+            OfficialTest(inFileName);
+        } finally {
+            Jlox.setEngine(Jlox.Engine.TREE);
+        }
+    }
+
+    @Test(dataProvider = "OfficialData")
+    public void OfficialTieredTest(String inFileName) throws Exception {
+        Jlox.setTierThresholds(0, 0);
+        try {
+            OfficialTest(inFileName);
+        } finally {
+            Jlox.setTierThresholds(1000, 10000);
+        }
+    }
+
+    @Test(dataProvider = "OfficialData")
+    public void OfficialVmTest(String inFileName) throws Exception {
+        Jlox.setEngine(Jlox.Engine.VM);
+        try {
+            OfficialTest(inFileName);
+        } finally {
+            Jlox.setEngine(Jlox.Engine.TREE);
+        }
+    }
+
+    @Test(dataProvider = "OfficialData")
+    public void OfficialThreadedScanTest(String inFileName) throws Exception {
+        Jlox.setThreadedScan(true);
+        try {
+            OfficialTest(inFileName);
+        } finally {
+            Jlox.setThreadedScan(false);
+        }
+    }
+
+    @Test()
+    public void VmDeepRecursionTest() {
+        Jlox.setEngine(Jlox.Engine.VM);
+        try {
+            Jlox.run(
+                    "fun depth(n) { if (n == 0) return 0; return depth(n - 1) + 1; }"
+                            + " print depth(200000);");
+        } finally {
+            Jlox.setEngine(Jlox.Engine.TREE);
+        }
+        assertEquals(outContent.toString().trim(), "200000");
+    }
+
+    @Test()
+    public void VmMaxDepthTest() {
+        Jlox.setEngine(Jlox.Engine.VM);
+        VM.setMaxFrames(10);
+        try {
+            // The script takes a frame, and deep(8) nine more.
+            Jlox.run(
+                    "fun deep(n) { if (n == 0) return 0; return deep(n - 1) + 1; }"
+                            + " print deep(8); print deep(9);");
+        } finally {
+            VM.setMaxFrames(1 << 20);
+            Jlox.setEngine(Jlox.Engine.TREE);
+        }
+        assertEquals(outContent.toString().trim(), "8");
+        assertEquals(errContent.toString().trim(), "Stack overflow.");
+    }
+
+    @Test()
+    public void TreeRecursionDepthTest() throws InterruptedException {
+        // On a 1 MB stack, the tree engine used to run out of stack at about 710 nested calls.
+        String src = "fun r(n) { if (n == 0) return 0; return 1 + r(n - 1); } print r(750);";
+        Thread thread = new Thread(null, () -> Jlox.run(src), "deep", 1 << 20);
+        Jlox.setTierThresholds(Integer.MAX_VALUE, 10000);
+        try {
+            thread.start();
+            thread.join();
+        } finally {
+            Jlox.setTierThresholds(1000, 10000);
+        }
+        assertEquals(outContent.toString().trim(), "750");
+    }
+
     private static String MatchAssert(String text) {
         Matcher matcher = assertPattern.matcher(text);
         StringBuilder bldr = new StringBuilder();